@@ -0,0 +1,29 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+/**
+ * Marks an event type whose listeners don't need the main thread.
+ *
+ * Received events of these types skip the main thread's packet queue. They are relayed to other servers from the connection's IO thread,
+ * and called on NetEvents' worker threads ({@code async-threads}). Their listeners must be thread-safe.
+ *
+ * Events must be created as asynchronous Bukkit events, by calling {@code super(true)} in their constructor.
+ * Java serialization doesn't run it, so these events need a codec, either registered or generated with {@link com.zachsthings.netevents.codec.NetEvent}.
+ * Events received as synchronous Bukkit events are called on the main thread instead, with a warning.
+ */
+public interface AsyncNetEvent {
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of buffers for received frame payloads, grouped into power-of-two size classes.
+ *
+ * Buffers larger than the biggest size class are allocated on demand and never pooled.
+ */
+class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 6, MAX_CLASS_SHIFT = 20;
+    private final boolean direct;
+    private final int maxPerClass;
+    private final Queue<ByteBuffer>[] classes;
+    private final AtomicInteger[] classSizes;
+
+    /**
+     * Create a new pool.
+     *
+     * @param direct Whether to allocate direct buffers
+     * @param maxPerClass Maximum number of idle buffers kept for each size class
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(boolean direct, int maxPerClass) {
+        this.direct = direct;
+        this.maxPerClass = maxPerClass;
+        final int classCount = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+        this.classes = new Queue[classCount];
+        this.classSizes = new AtomicInteger[classCount];
+        for (int i = 0; i < classCount; ++i) {
+            classes[i] = new ConcurrentLinkedQueue<>();
+            classSizes[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Get a buffer with at least {@code len} bytes of capacity, with its limit set to {@code len}.
+     *
+     * @param len The number of bytes needed
+     * @return A cleared buffer
+     */
+    public ByteBuffer acquire(int len) {
+        final int sizeClass = sizeClass(len);
+        if (sizeClass == -1) {
+            return allocate(len);
+        }
+        ByteBuffer buf = classes[sizeClass].poll();
+        if (buf == null) {
+            buf = allocate(1 << (sizeClass + MIN_CLASS_SHIFT));
+        } else {
+            classSizes[sizeClass].decrementAndGet();
+        }
+        buf.limit(len);
+        return buf;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire(int)} to the pool. The buffer must not be used afterwards.
+     *
+     * @param buf The buffer to return
+     */
+    public void release(ByteBuffer buf) {
+        final int sizeClass = sizeClass(buf.capacity());
+        if (sizeClass == -1 || buf.capacity() != 1 << (sizeClass + MIN_CLASS_SHIFT) || buf.isDirect() != direct) {
+            return;
+        }
+        if (classSizes[sizeClass].incrementAndGet() > maxPerClass) {
+            classSizes[sizeClass].decrementAndGet();
+            return;
+        }
+        buf.clear();
+        classes[sizeClass].add(buf);
+    }
+
+    private ByteBuffer allocate(int len) {
+        return direct ? ByteBuffer.allocateDirect(len) : ByteBuffer.allocate(len);
+    }
+
+    private static int sizeClass(int len) {
+        if (len > 1 << MAX_CLASS_SHIFT) {
+            return -1;
+        }
+        final int shift = len <= 1 << MIN_CLASS_SHIFT ? MIN_CLASS_SHIFT : 32 - Integer.numberOfLeadingZeros(len - 1);
+        return shift - MIN_CLASS_SHIFT;
+    }
+}
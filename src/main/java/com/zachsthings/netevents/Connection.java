@@ -16,6 +16,7 @@
 package com.zachsthings.netevents;
 
 import com.zachsthings.netevents.packet.*;
+import com.zachsthings.netevents.sec.WrappedSocketChannel;
 
 import java.io.Closeable;
 import java.io.IOException;
@@ -23,35 +24,79 @@ import java.net.SocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.BitSet;
 import java.util.List;
-import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
 /**
  * Represents a single connection. {@link Forwarder} wraps connection for reconnecting, but once this is closed it's closed permanently.
+ *
+ * IO is either performed by a pair of dedicated threads per connection, or by a shared {@link SelectorLoop}.
+ * Both modes use the same framing code, which never assumes a read or write completes in one call.
  */
 class Connection implements Closeable {
     // State tracking
     private final AtomicBoolean disconnectHandled = new AtomicBoolean();
     private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
     // Connection objects
+    private final SocketChannel rawChan;
     private final SocketChannel chan;
     private OutputThread out;
     private InputThread in;
+    private SelectorLoop loop;
+    private volatile SelectionKey key;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
     private final SocketAddress remoteAddress;
     private final Forwarder attachment;
+    // Framing state
+    static final int HEADER_SIZE = 1 + 4;
+    private static final int FLAG_COMPRESSED = 0x80; // Set on the opcode of frames with a compressed payload
+    private final SendQueue sendQueue;
+    private final ByteBuffer readHeader = ByteBuffer.allocateDirect(HEADER_SIZE);
+    private ByteBuffer readPayload;
+    // Header and payload pairs for the batch being written. Written with one gathering write.
+    private final ByteBuffer writeHeaders;
+    private final ByteBuffer[] writeBatch;
+    private final SendQueue.Entry[] writeBatchEntries;
+    private final int maxBatchBytes;
+    private final int maxFrameSize;
+    private final BufferPool bufferPool;
+    private int writeBatchOffset, writeBatchLength;
+    private boolean closeAfterBatch;
+    private boolean writeWaitingForRead; // Selector mode only, the wrapped channel can't write until it has read more
+    private final ReentrantLock typesLock = new ReentrantLock();
+    private final BitSet definedTypes = new BitSet(); // Type ids defined to the remote server, guarded by typesLock
+    private final EventTypeTable remoteTypes; // Only used by the reading thread
+    private final FrameCompressor compressor; // Closed once the reader and writer have stopped
+    private final AtomicInteger runningIOThreads = new AtomicInteger(2); // Thread modes only
+    private final boolean compressionEnabled;
+    private volatile int remoteCapabilities; // From the remote server's ServerIDPacket
 
-    private Connection(Forwarder attachment, SocketChannel chan) throws IOException {
+    private Connection(Forwarder attachment, SocketChannel rawChan, SocketChannel chan) throws IOException {
         this.attachment = attachment;
+        this.rawChan = rawChan;
         this.chan = chan;
         this.remoteAddress = chan.getRemoteAddress();
         if (remoteAddress == null) {
             throw new IOException("Null remote address for " + chan);
         }
+        final NetEventsConfig config = attachment.getPlugin().getNetEventsConfig();
+        this.writeHeaders = ByteBuffer.allocateDirect(HEADER_SIZE * config.getWriteBatchPackets());
+        this.writeBatch = new ByteBuffer[2 * config.getWriteBatchPackets()];
+        this.writeBatchEntries = new SendQueue.Entry[config.getWriteBatchPackets()];
+        this.maxBatchBytes = config.getWriteBatchBytes();
+        this.maxFrameSize = config.getMaxFrameSize();
+        this.bufferPool = attachment.getPlugin().getBufferPool();
+        this.remoteTypes = new EventTypeTable(attachment.getPlugin().getCodecRegistry());
+        this.compressor = new FrameCompressor(config.getCompressionLevel(), config.getCompressionThreshold());
+        this.compressionEnabled = config.useCompression();
+        this.sendQueue = new SendQueue(config.getSendQueuePackets(), config.getSendQueueBytes(), config.getSendQueueOverflow(), attachment.getDroppedPacketCounter());
     }
 
     private void startThreads() throws IOException {
@@ -61,9 +106,41 @@ class Connection implements Closeable {
         in.start();
     }
 
-    public static Connection open(Forwarder attachment, SocketChannel chan) throws IOException {
-        final Connection ret = new Connection(attachment, chan);
-        ret.startThreads();
+    private void startSelector(SelectorLoop loop) throws IOException {
+        this.loop = loop;
+        rawChan.configureBlocking(false);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    key = rawChan.register(Connection.this.loop.getSelector(), SelectionKey.OP_READ, new SelectorHandler());
+                    flush();
+                } catch (ClosedChannelException e) {
+                    handleClosed();
+                } catch (IOException e) {
+                    handleError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Open a new connection.
+     *
+     * @param attachment The forwarder owning this connection
+     * @param rawChan The underlying socket channel, used for selector registration
+     * @param chan The channel to perform IO with. May be a wrapper around {@code rawChan}
+     * @return The opened connection
+     * @throws IOException if unable to start IO for the connection
+     */
+    public static Connection open(Forwarder attachment, SocketChannel rawChan, SocketChannel chan) throws IOException {
+        final Connection ret = new Connection(attachment, rawChan, chan);
+        final SelectorLoopGroup loops = attachment.getPlugin().getSelectorLoops();
+        if (loops != null) {
+            ret.startSelector(loops.next());
+        } else {
+            ret.startThreads();
+        }
         return ret;
     }
 
@@ -76,30 +153,393 @@ class Connection implements Closeable {
         if (chan.isConnected()) {
             return;
         }
-        out.interrupt();
-        in.interrupt();
+        if (out != null) {
+            out.interrupt();
+            in.interrupt();
+        }
+        if (key != null) {
+            loop.deregister(rawChan, false);
+        }
         if (disconnectHandled.compareAndSet(false, true)) {
             for (Runnable r : closeListeners) {
                 r.run();
             }
+            if (loop != null) {
+                // Whatever handler is running on the loop may still use the compressor, so close it after that
+                if (loop.isAlive()) {
+                    loop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            compressor.close();
+                        }
+                    });
+                } else {
+                    compressor.close();
+                }
+            }
         }
+        // Anything still queued won't be written. The batch being written is left to the garbage collector, since it may still be in use.
+        sendQueue.close();
     }
 
-    public void write(Packet p) {
+    /**
+     * Called by each IO thread as it exits, in thread modes. The last one to exit frees the compressor.
+     */
+    void ioThreadStopped() {
+        if (runningIOThreads.decrementAndGet() == 0) {
+            compressor.close();
+        }
+    }
+
+    /**
+     * Log an IO error (unless it just indicates the channel was closed), then close this connection.
+     *
+     * @param e The error that occurred
+     */
+    void handleError(Exception e) {
+        if (!(e instanceof ClosedChannelException)) {
+            getPlugin().getLogger().log(Level.SEVERE, "Error occurred while processing IO for " + getRemoteAddress(), e);
+        }
+        try {
+            close();
+        } catch (IOException e2) {
+            getPlugin().getLogger().log(Level.SEVERE, "Error occurred while closing connection " + getRemoteAddress(), e2);
+        }
+    }
+
+    /**
+     * Queue a packet to be written, applying the configured overflow policy if the send queue is full.
+     *
+     * @param p The packet to write
+     * @param mayBlock Whether to wait for room with {@link NetEventsConfig.OverflowPolicy#BLOCK}. If false, the packet is dropped instead
+     * @return The outcome of queueing the packet
+     * @throws IOException if the packet could not be encoded
+     */
+    public WriteResult write(Packet p, boolean mayBlock) throws IOException {
+        return write(p, mayBlock, false);
+    }
+
+    /**
+     * Queue a control packet that must not be lost, ignoring the send queue's limits. Never blocks.
+     *
+     * @param p The packet to write
+     * @return The outcome of queueing the packet
+     * @throws IOException if the packet could not be encoded
+     */
+    public WriteResult writeRequired(Packet p) throws IOException {
+        return write(p, false, true);
+    }
+
+    private WriteResult write(Packet p, boolean mayBlock, boolean required) throws IOException {
         if (!chan.isConnected()) {
-            throw new IllegalStateException("Channel not connected");
+            return WriteResult.NOT_CONNECTED;
+        }
+        WriteResult result;
+        try {
+            result = WriteResult.QUEUED;
+            if (p instanceof EventPacket) {
+                result = defineType(((EventPacket) p).getTypeId(), ((EventPacket) p).getTypeName());
+            }
+            if (result.isQueued()) {
+                result = sendQueue.offer(SendQueue.Entry.retained(p, false, required), mayBlock);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return WriteResult.DROPPED;
+        }
+        if (result.isQueued()) {
+            scheduleFlush();
+        } else if (result == WriteResult.DISCONNECTED) {
+            getPlugin().getLogger().warning("Send queue to " + getRemoteAddress() + " is full, disconnecting slow server");
+            close();
+        }
+        return result;
+    }
+
+    /**
+     * Queue a definition of an event type if this connection doesn't have one yet.
+     * Packets queued by other threads wait here until the definition is queued, so it is always sent before them.
+     */
+    private WriteResult defineType(int typeId, String typeName) throws IOException, InterruptedException {
+        typesLock.lock();
+        try {
+            if (!definedTypes.get(typeId)) {
+                final WriteResult result = sendQueue.offer(SendQueue.Entry.retained(new TypeDefinitionPacket(typeId, typeName), false, true), false);
+                if (!result.isQueued()) {
+                    return result;
+                }
+                definedTypes.set(typeId);
+            }
+            return WriteResult.QUEUED;
+        } finally {
+            typesLock.unlock();
         }
-        out.sendQueue.addLast(new PacketEntry(p, false));
     }
 
-    public void writeAndClose(Packet p) {
+    public void writeAndClose(Packet p) throws IOException {
         if (!chan.isConnected()) {
             // We're assuming that the channel has been disconnected from the other side,
             // so this termination packet is no longer necessary
             //throw new IllegalStateException("Channel not connected");
             return;
         }
-        out.sendQueue.addLast(new PacketEntry(p, true));
+        try {
+            sendQueue.offer(SendQueue.Entry.retained(p, true), false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * In selector mode, make sure the loop will write out newly queued packets.
+     * Threaded mode needs nothing here since the output thread is waiting on the queue.
+     */
+    private void scheduleFlush() {
+        if (loop != null && flushScheduled.compareAndSet(false, true)) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduled.set(false);
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        handleError(e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Write as much queued output as possible without blocking, registering write interest if anything remains
+     * and the wrapped channel isn't waiting to read first.
+     * Only call on the selector loop.
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    private void flush() throws IOException {
+        final SelectionKey key = this.key;
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        final boolean written = writeQueued();
+        if (!key.isValid()) {
+            return; // Closed while writing
+        }
+        writeWaitingForRead = !written && chan instanceof WrappedSocketChannel && ((WrappedSocketChannel) chan).isWaitingForRead();
+        if (written || writeWaitingForRead) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Write queued packets until the queue is empty or the channel can't accept more data.
+     * Queued packets are written in batches, each with a single gathering write.
+     * Only one thread may write at a time.
+     *
+     * @return true if everything queued has been written
+     * @throws IOException if an error occurs while writing
+     */
+    private boolean writeQueued() throws IOException {
+        while (true) {
+            if (chan instanceof WrappedSocketChannel && !((WrappedSocketChannel) chan).flush()) {
+                return false;
+            }
+            if (writeBatchOffset == writeBatchLength) {
+                releaseBatch();
+                if (closeAfterBatch) {
+                    close();
+                    return true;
+                }
+                if (!fillBatch(sendQueue.poll())) {
+                    return true;
+                }
+            }
+
+            chan.write(writeBatch, writeBatchOffset, writeBatchLength - writeBatchOffset);
+            while (writeBatchOffset < writeBatchLength && !writeBatch[writeBatchOffset].hasRemaining()) {
+                writeBatch[writeBatchOffset++] = null;
+            }
+            if (writeBatchOffset < writeBatchLength) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Encode a batch of packets, starting with {@code first} and followed by as many queued packets as fit within the batch limits.
+     *
+     * @param first The first packet of the batch, or null if nothing is queued
+     * @return true if the batch contains anything to write
+     */
+    private boolean fillBatch(SendQueue.Entry first) {
+        writeHeaders.clear();
+        writeBatchOffset = 0;
+        writeBatchLength = 0;
+        int batchBytes = 0;
+        final boolean compress = compressionEnabled && (remoteCapabilities & ServerIDPacket.CAP_COMPRESSION) != 0;
+        if (compress) {
+            compressor.reset();
+        }
+        for (SendQueue.Entry entry = first; entry != null; entry = sendQueue.poll()) {
+            ByteBuffer payload = entry.payload;
+            int opcode = entry.packet.getOpcode();
+            if (compress) {
+                final ByteBuffer compressed = compressor.compress(payload);
+                if (compressed != null) {
+                    payload = compressed;
+                    opcode |= FLAG_COMPRESSED;
+                }
+            }
+            final ByteBuffer header = writeHeaders.slice();
+            header.limit(HEADER_SIZE);
+            header.put((byte) opcode);
+            header.putInt(payload.remaining());
+            header.flip();
+            writeHeaders.position(writeHeaders.position() + HEADER_SIZE);
+
+            writeBatchEntries[writeBatchLength / 2] = entry;
+            writeBatch[writeBatchLength++] = header;
+            writeBatch[writeBatchLength++] = payload;
+            batchBytes += HEADER_SIZE + payload.remaining();
+            if (entry.toClose) {
+                closeAfterBatch = true;
+                break;
+            }
+            if (writeBatchLength == writeBatch.length || batchBytes >= maxBatchBytes) {
+                break;
+            }
+        }
+        return writeBatchLength > 0;
+    }
+
+    private void releaseBatch() {
+        for (int i = 0; i < writeBatchEntries.length && writeBatchEntries[i] != null; ++i) {
+            writeBatchEntries[i].release();
+            writeBatchEntries[i] = null;
+        }
+    }
+
+    /**
+     * Read from the channel until one complete frame has been read and handled, or no more data is available.
+     *
+     * @return true if a complete frame was handled
+     * @throws IOException if an error occurs while reading or the channel has been closed
+     */
+    private boolean readFrame() throws IOException {
+        if (readPayload == null) {
+            if (chan.read(readHeader) == -1) {
+                throw new ClosedChannelException();
+            }
+            if (readHeader.hasRemaining()) {
+                return false;
+            }
+            readHeader.flip();
+            final int len = readHeader.getInt(1);
+            if (len < 0 || len > maxFrameSize) {
+                throw new IOException("Received frame of " + len + " bytes from " + getRemoteAddress() + ", maximum is " + maxFrameSize);
+            }
+            readPayload = bufferPool.acquire(len);
+        }
+
+        if (readPayload.hasRemaining() && chan.read(readPayload) == -1) {
+            throw new ClosedChannelException();
+        }
+        if (readPayload.hasRemaining()) {
+            return false;
+        }
+
+        int opcode = readHeader.get(0) & 0xFF;
+        ByteBuffer payload = readPayload;
+        readHeader.clear();
+        readPayload = null;
+        payload.flip();
+        if ((opcode & FLAG_COMPRESSED) != 0) {
+            opcode &= ~FLAG_COMPRESSED;
+            final ByteBuffer compressed = payload;
+            try {
+                payload = compressor.decompress(compressed, bufferPool, maxFrameSize);
+            } finally {
+                bufferPool.release(compressed);
+            }
+        }
+        handleFrame(opcode, payload);
+        return true;
+    }
+
+    /**
+     * Decode and queue a received frame. The payload is returned to the buffer pool afterwards, unless the packet took ownership of it.
+     *
+     * @param opcode The frame's opcode
+     * @param payload The frame's payload, from {@link #bufferPool}
+     * @throws IOException if unable to handle the frame
+     */
+    private void handleFrame(int opcode, final ByteBuffer payload) throws IOException {
+        Packet packet = null;
+        boolean handled = false;
+        try {
+            switch (opcode) {
+                case Opcodes.SERVER_ID:
+                    packet = ServerIDPacket.read(payload);
+                    remoteCapabilities = ((ServerIDPacket) packet).getCapabilities();
+                    break;
+                case Opcodes.PASS_EVENT:
+                    packet = EventPacket.read(payload, remoteTypes, getPlugin().getCodecRegistry(), new Runnable() {
+                        @Override
+                        public void run() {
+                            bufferPool.release(payload);
+                        }
+                    });
+                    if (((EventPacket) packet).isRelayOnly()) {
+                        getPlugin().debug("Event of unknown type " + ((EventPacket) packet).getTypeName() + " received from " + getRemoteAddress() + ", only relaying it");
+                    } else if (NetEventsPlugin.isAsync(((EventPacket) packet).getType())) {
+                        // Relayed from here and called on a worker thread, without waiting for the main thread
+                        getPlugin().debug("Received packet " + packet + " from " + getRemoteAddress());
+                        handled = true;
+                        try {
+                            getPlugin().callEventFromIO((EventPacket) packet, attachment);
+                        } finally {
+                            ((EventPacket) packet).release();
+                        }
+                    } else if (getPlugin().hasListeners(((EventPacket) packet).getType())) {
+                        // Decode here rather than on the main thread. Failures are reported when the event is called
+                        try {
+                            ((EventPacket) packet).getSendEvent();
+                        } catch (IOException ignore) {
+                        }
+                    }
+                    break;
+                case Opcodes.DISCONNECT:
+                    packet = DisconnectPacket.read(payload);
+                    break;
+                case Opcodes.LINK_STATE:
+                    packet = LinkStatePacket.read(payload);
+                    break;
+                case Opcodes.RPC:
+                    packet = RpcPacket.read(payload, getPlugin().getCodecRegistry());
+                    break;
+                case Opcodes.TYPE_DEFINITION:
+                    final TypeDefinitionPacket definition = TypeDefinitionPacket.read(payload);
+                    getPlugin().debug("Received packet " + definition + " from " + getRemoteAddress());
+                    remoteTypes.define(definition);
+                    break;
+                default:
+                    throw new IOException("Unknown opcode " + opcode + " received");
+            }
+            if (packet != null && !handled) {
+                getPlugin().debug("Received packet " + packet + " from " + getRemoteAddress());
+                getPlugin().getHandlerQueue().queuePacket(packet, attachment);
+            }
+        } catch (Exception e) {
+            getPlugin().getLogger().log(Level.SEVERE, "Unable to read packet (id " + opcode + ") from " + getRemoteAddress() + ", skipping", e);
+        } finally {
+            if (!(packet instanceof ReferenceCounted)) {
+                bufferPool.release(payload);
+            }
+        }
     }
 
     SocketChannel getChannel() {
@@ -131,17 +571,28 @@ class Connection implements Closeable {
                 '}';
     }
 
-    private static class PacketEntry {
-        private final Packet packet;
-        private final boolean toClose;
+    private class SelectorHandler implements SelectorLoop.Handler {
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if (key.isReadable()) {
+                while (readFrame()) {
+                    if (!key.isValid()) {
+                        return;
+                    }
+                }
+            }
+            if (key.isValid() && (key.isWritable() || writeWaitingForRead)) {
+                flush();
+            }
+        }
 
-        private PacketEntry(Packet packet, boolean toClose) {
-            this.packet = packet;
-            this.toClose = toClose;
+        @Override
+        public void failed(Exception e) {
+            handleError(e);
         }
     }
+
     public class OutputThread extends IOThread {
-        private final BlockingDeque<PacketEntry> sendQueue = new LinkedBlockingDeque<>();
 
         public OutputThread() throws IOException {
             super("output", Connection.this);
@@ -149,33 +600,13 @@ class Connection implements Closeable {
 
         @Override
         public void act() throws IOException {
-            PacketEntry packet;
             try {
-                while ((packet = sendQueue.takeFirst()) != null) {
-                    write(packet.packet);
-                    if (packet.toClose) {
-                        conn.close();
-                    }
-                }
+                fillBatch(sendQueue.take());
+                writeQueued();
             } catch (InterruptedException e) {
                 conn.close();
             }
         }
-
-        private void write(Packet packet) throws IOException {
-            ByteBuffer payload = packet.write();
-            headerBuf.clear();
-            headerBuf.put(packet.getOpcode());
-            headerBuf.putInt(payload.limit());
-
-            headerBuf.flip();
-            payload.flip();
-            chan.write(headerBuf);
-            int written = 0;
-            while (written < payload.limit()) {
-                written += chan.write(payload);
-            }
-        }
     }
 
     public class InputThread extends IOThread {
@@ -186,52 +617,7 @@ class Connection implements Closeable {
 
         @Override
         public void act() throws IOException {
-            headerBuf.clear();
-            int read = chan.read(headerBuf);
-            if (read == -1) {
-                throw new ClosedChannelException();
-            }
-            headerBuf.flip();
-
-            final int opcode = headerBuf.get();
-            final int len = headerBuf.getInt();
-
-            ByteBuffer payload = ByteBuffer.allocate(len);
-            read = 0;
-            while (read < len) {
-                int tempRead = chan.read(payload);
-                if (tempRead == -1) {
-                    throw new ClosedChannelException();
-                }
-                read += tempRead;
-            }
-            payload.flip();
-
-            try {
-                Packet packet;
-                switch (opcode) {
-                    case Opcodes.SERVER_ID:
-                        packet = ServerIDPacket.read(payload);
-                        break;
-                    case Opcodes.PASS_EVENT:
-                        packet = EventPacket.read(payload);
-                        if (packet == null) {
-                            getPlugin().debug("Unknown event received from " + conn.getRemoteAddress());
-                        }
-                        break;
-                    case Opcodes.DISCONNECT:
-                        packet = DisconnectPacket.read(payload);
-                        break;
-                    default:
-                        throw new IOException("Unknown opcode " + opcode + " received");
-                }
-                if (packet != null) {
-                    getPlugin().debug("Received packet " + packet + " from " + conn.getRemoteAddress());
-                    getPlugin().getHandlerQueue().queuePacket(packet, attachment);
-                }
-            } catch (Exception e) {
-                getPlugin().getLogger().log(Level.SEVERE, "Unable to read packet (id " + opcode + ") from " + conn.getRemoteAddress() + ", skipping", e);
-            }
+            readFrame();
         }
     }
 
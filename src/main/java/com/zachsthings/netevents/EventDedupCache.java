@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded set of recently seen event UUIDs, used to drop duplicate events.
+ *
+ * Entries are kept in a primitive open-addressing table per segment and evicted oldest-first, either
+ * once a segment is full or once an entry is older than the configured TTL.
+ * Segments are locked independently so lookups from different threads rarely contend.
+ */
+class EventDedupCache {
+    private static final int MAX_SEGMENTS = 16, MIN_SEGMENT_CAPACITY = 256;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final long ttlNanos;
+
+    /**
+     * Create a new cache.
+     *
+     * @param capacity Total number of UUIDs to remember
+     * @param ttl Time after which an entry is forgotten, or {@code <= 0} to only evict by capacity
+     * @param unit Unit of {@code ttl}
+     */
+    public EventDedupCache(int capacity, long ttl, TimeUnit unit) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1, was " + capacity);
+        }
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS && capacity / (segmentCount * 2) >= MIN_SEGMENT_CAPACITY) {
+            segmentCount *= 2;
+        }
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        for (int i = 0; i < segmentCount; ++i) {
+            segments[i] = new Segment(capacity / segmentCount + (i < capacity % segmentCount ? 1 : 0));
+        }
+        this.ttlNanos = ttl > 0 ? unit.toNanos(ttl) : 0;
+    }
+
+    /**
+     * Record an event UUID as processed.
+     *
+     * @param uid The event's unique id
+     * @return true if the UUID had not been seen (within the cache's bounds), false if it is a duplicate
+     */
+    public boolean markProcessed(UUID uid) {
+        final long msb = uid.getMostSignificantBits(), lsb = uid.getLeastSignificantBits();
+        final int hash = hash(msb, lsb);
+        final Segment seg = segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+        return seg.add(msb, lsb, hash, System.nanoTime());
+    }
+
+    /**
+     * @return The number of UUIDs currently remembered
+     */
+    public int size() {
+        int size = 0;
+        for (Segment seg : segments) {
+            size += seg.size();
+        }
+        return size;
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    private class Segment {
+        // Insertion-ordered ring of entries, oldest at head
+        private final long[] ringMsb, ringLsb, ringTime;
+        private final int[] ringHash;
+        private int head, size;
+        // Linear probing table of ring index + 1, 0 marks an empty slot
+        private final int[] table;
+        private final int tableMask;
+
+        private Segment(int capacity) {
+            ringMsb = new long[capacity];
+            ringLsb = new long[capacity];
+            ringTime = new long[capacity];
+            ringHash = new int[capacity];
+            int tableSize = Integer.highestOneBit(capacity) * 4;
+            table = new int[tableSize];
+            tableMask = tableSize - 1;
+        }
+
+        public synchronized int size() {
+            return size;
+        }
+
+        public synchronized boolean add(long msb, long lsb, int hash, long now) {
+            while (size > 0 && ttlNanos > 0 && now - ringTime[head] >= ttlNanos) {
+                evictOldest();
+            }
+
+            int slot = hash & tableMask;
+            for (int entry; (entry = table[slot]) != 0; slot = (slot + 1) & tableMask) {
+                if (ringMsb[entry - 1] == msb && ringLsb[entry - 1] == lsb) {
+                    return false;
+                }
+            }
+
+            if (size == ringMsb.length) {
+                evictOldest();
+                // Eviction may have shifted entries into the slot we found, so look again
+                slot = hash & tableMask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & tableMask;
+                }
+            }
+
+            final int idx = (head + size) % ringMsb.length;
+            ringMsb[idx] = msb;
+            ringLsb[idx] = lsb;
+            ringTime[idx] = now;
+            ringHash[idx] = hash;
+            table[slot] = idx + 1;
+            ++size;
+            return true;
+        }
+
+        /**
+         * Remove the oldest entry from both the ring and the table. Only call while holding this segment's lock.
+         */
+        private void evictOldest() {
+            final int idx = head;
+            int gap = ringHash[idx] & tableMask;
+            while (table[gap] != idx + 1) {
+                gap = (gap + 1) & tableMask;
+            }
+
+            // Backward-shift deletion keeps probe sequences intact without tombstones
+            for (int slot = (gap + 1) & tableMask; table[slot] != 0; slot = (slot + 1) & tableMask) {
+                final int home = ringHash[table[slot] - 1] & tableMask;
+                final boolean homeBetween = gap <= slot ? (home > gap && home <= slot) : (home > gap || home <= slot);
+                if (!homeBetween) {
+                    table[gap] = table[slot];
+                    gap = slot;
+                }
+            }
+            table[gap] = 0;
+
+            head = (head + 1) % ringMsb.length;
+            --size;
+        }
+    }
+}
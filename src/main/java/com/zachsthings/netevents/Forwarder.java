@@ -25,7 +25,9 @@ import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 
 /**
  * Handles logic of connection management and teardown.
@@ -37,6 +39,8 @@ public class Forwarder implements Closeable {
     private final AtomicReference<Connection> conn = new AtomicReference<>();
     private SocketAddress reconnectAddress;
     private final AtomicReference<UUID> remoteServerUUID = new AtomicReference<>();
+    private final AtomicLong droppedPackets = new AtomicLong(), overflowDisconnects = new AtomicLong();
+    private final PacketHandlerQueue.Inbound inbound = new PacketHandlerQueue.Inbound(this);
 
     public Forwarder(NetEventsPlugin plugin) {
         this.plugin = plugin;
@@ -51,6 +55,17 @@ public class Forwarder implements Closeable {
                 plugin.removeForwarder(Forwarder.this);
             }
             conn.set(null);
+            // Usually closed on an IO thread, which must not wait for the routing table
+            if (plugin.getServer().isPrimaryThread()) {
+                plugin.getRoutingTable().refresh();
+            } else if (plugin.isEnabled()) {
+                plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        plugin.getRoutingTable().refresh();
+                    }
+                });
+            }
         }
     }
 
@@ -67,18 +82,18 @@ public class Forwarder implements Closeable {
         reconnectAddress = addr;
     }
 
-    public void connect(SocketChannel chan) throws IOException {
-        Connection.configureSocketChannel(chan);
-        chan = plugin.getSocketWrapper().wrapSocket(chan);
+    public void connect(SocketChannel rawChan) throws IOException {
+        Connection.configureSocketChannel(rawChan);
+        final SocketChannel chan = plugin.getSocketWrapper().wrapSocket(rawChan);
 
-        final Connection conn = Connection.open(this, chan);
+        final Connection conn = Connection.open(this, rawChan, chan);
         if (!this.conn.compareAndSet(null, conn)) { // Already been connected
             conn.close();
         } else {
             // Successfully connected, now perform initialization
             conn.addCloseListener(new ConnectionCloseListener());
             reconnectAddress = null; // Clear it out in case of previous connection
-            write(new ServerIDPacket(plugin.getServerUUID()));
+            writeRequired(new ServerIDPacket(plugin.getServerUUID()));
             plugin.debug("Connected to " + chan.getRemoteAddress());
         }
     }
@@ -114,11 +129,82 @@ public class Forwarder implements Closeable {
         }
     }
 
-    public void write(Packet packet) {
+    /**
+     * @return Packets received from the remote server, waiting to be handled on the main thread
+     */
+    PacketHandlerQueue.Inbound getInbound() {
+        return inbound;
+    }
+
+    /**
+     * Queue a packet to be sent to the remote server.
+     *
+     * @param packet The packet to send
+     * @return Whether the packet was queued, and if not, why
+     */
+    public WriteResult write(Packet packet) {
+        return write(packet, true);
+    }
+
+    /**
+     * Queue a packet to be sent to the remote server.
+     *
+     * @param packet The packet to send
+     * @param mayBlock Whether to wait for room in a full send queue with {@link NetEventsConfig.OverflowPolicy#BLOCK}.
+     *                 Must be false on IO threads, in which case the packet is dropped instead
+     * @return Whether the packet was queued, and if not, why
+     */
+    public WriteResult write(Packet packet, boolean mayBlock) {
+        return write(packet, mayBlock, false);
+    }
+
+    /**
+     * Queue a control packet to be sent to the remote server. It is queued even if the send queue is full,
+     * so the overflow policy never drops it, and this never blocks.
+     *
+     * @param packet The packet to send
+     * @return Whether the packet was queued, and if not, why
+     */
+    public WriteResult writeRequired(Packet packet) {
+        return write(packet, false, true);
+    }
+
+    private WriteResult write(Packet packet, boolean mayBlock, boolean required) {
         final Connection conn = this.conn.get();
-        if (conn != null) {
-            conn.write(packet);
+        if (conn == null) {
+            return WriteResult.NOT_CONNECTED;
         }
+        WriteResult result;
+        try {
+            result = required ? conn.writeRequired(packet) : conn.write(packet, mayBlock);
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to encode packet " + packet + " for " + conn.getRemoteAddress(), e);
+            return WriteResult.FAILED;
+        }
+        if (result == WriteResult.DISCONNECTED) {
+            overflowDisconnects.incrementAndGet();
+        }
+        return result;
+    }
+
+    AtomicLong getDroppedPacketCounter() {
+        return droppedPackets;
+    }
+
+    /**
+     * Returns the number of packets dropped because the send queue to this server was full.
+     *
+     * @return The number of dropped packets
+     */
+    public long getDroppedPackets() {
+        return droppedPackets.get();
+    }
+
+    /**
+     * @return The number of times this server was disconnected for not keeping up with its send queue
+     */
+    public long getOverflowDisconnects() {
+        return overflowDisconnects.get();
     }
 
     public void disconnect(String reason) throws IOException {
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses frame payloads for one connection, reusing its deflater, inflater and buffers.
+ * Compressed payloads are the uncompressed length followed by the deflated payload.
+ *
+ * Each direction of a connection is one deflate stream, flushed at the end of every compressed frame,
+ * so content repeated between frames (like class names in serialized events) is only sent in full once.
+ * Compressed frames must therefore be decompressed in the order they were compressed.
+ * Compression is only used by the writing thread and decompression by the reading thread.
+ */
+class FrameCompressor {
+    private static final byte[] EMPTY = new byte[0];
+    // Scratch arrays larger than this are dropped after use, so one large frame doesn't stay allocated for the connection's lifetime
+    private static final int MAX_KEPT_SIZE = 64 * 1024;
+    private static final int MAX_KEPT_ARENA_SIZE = 1 << 20;
+    private final int threshold;
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+    // Writer state
+    private byte[] deflateIn = EMPTY, deflateOut = EMPTY;
+    private ByteBuffer arena = ByteBuffer.allocate(0); // Compressed payloads of the batch being written
+    // Reader state
+    private byte[] inflateIn = EMPTY, inflateOut = EMPTY;
+
+    /**
+     * @param level The deflate compression level
+     * @param threshold Payloads smaller than this are not compressed
+     */
+    public FrameCompressor(int level, int threshold) {
+        this.deflater = new Deflater(level);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Free the native memory of the deflater and inflater.
+     * Only call once neither the writing nor the reading thread will use this compressor again.
+     */
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+
+    /**
+     * Start a new batch. Payloads returned by {@link #compress(ByteBuffer)} before this must no longer be in use.
+     */
+    public void reset() {
+        if (arena.capacity() > MAX_KEPT_ARENA_SIZE) {
+            arena = ByteBuffer.allocate(0);
+        } else {
+            arena.clear();
+        }
+    }
+
+    /**
+     * Compress a payload, if it is large enough.
+     *
+     * @param payload The payload. Its position is not changed
+     * @return The compressed payload, valid until the next {@link #reset()}, or null if the payload should be sent as is
+     */
+    public ByteBuffer compress(ByteBuffer payload) {
+        final int len = payload.remaining();
+        if (len < threshold) {
+            return null;
+        }
+        if (deflateIn.length < len) {
+            deflateIn = new byte[len];
+        }
+        if (deflateOut.length < len + 64) {
+            deflateOut = new byte[len + 64];
+        }
+        payload.duplicate().get(deflateIn, 0, len);
+        deflater.setInput(deflateIn, 0, len);
+        int written = 0;
+        while (true) {
+            written += deflater.deflate(deflateOut, written, deflateOut.length - written, Deflater.SYNC_FLUSH);
+            if (written < deflateOut.length) {
+                break; // Flushed everything
+            }
+            deflateOut = Arrays.copyOf(deflateOut, 2 * deflateOut.length);
+        }
+
+        if (arena.remaining() < 4 + written) {
+            // Earlier payloads of the batch still point into the old arena
+            arena = ByteBuffer.allocate(Math.max(2 * arena.capacity(), 4 + written));
+        }
+        final ByteBuffer ret = arena.slice();
+        ret.putInt(len);
+        ret.put(deflateOut, 0, written);
+        ret.flip();
+        arena.position(arena.position() + ret.limit());
+        deflateIn = shrink(deflateIn);
+        deflateOut = shrink(deflateOut);
+        return ret;
+    }
+
+    /**
+     * Decompress a payload into a buffer from a pool.
+     *
+     * @param payload The compressed payload
+     * @param pool The pool to take the returned buffer from
+     * @param maxSize The largest allowed uncompressed size
+     * @return The uncompressed payload, ready to be read
+     * @throws IOException if the payload is invalid or too large
+     */
+    public ByteBuffer decompress(ByteBuffer payload, BufferPool pool, int maxSize) throws IOException {
+        final int len = payload.getInt();
+        if (len < 0 || len > maxSize) {
+            throw new IOException("Compressed frame of " + len + " bytes received, maximum is " + maxSize);
+        }
+        final int compressedLen = payload.remaining();
+        if (inflateIn.length < compressedLen) {
+            inflateIn = new byte[compressedLen];
+        }
+        if (inflateOut.length < len + 1) {
+            inflateOut = new byte[len + 1]; // Room to detect payloads inflating to more than their length
+        }
+        payload.get(inflateIn, 0, compressedLen);
+        inflater.setInput(inflateIn, 0, compressedLen);
+        int read = 0;
+        try {
+            while (read <= len) {
+                final int n = inflater.inflate(inflateOut, read, len + 1 - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflater.finished())) {
+                    break;
+                }
+                read += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed frame", e);
+        }
+        if (read != len || inflater.getRemaining() != 0) {
+            throw new IOException("Compressed frame does not match its length " + len);
+        }
+
+        final ByteBuffer ret = pool.acquire(len);
+        ret.put(inflateOut, 0, len);
+        ret.flip();
+        inflateIn = shrink(inflateIn);
+        inflateOut = shrink(inflateOut);
+        return ret;
+    }
+
+    private static byte[] shrink(byte[] scratch) {
+        return scratch.length > MAX_KEPT_SIZE ? EMPTY : scratch;
+    }
+}
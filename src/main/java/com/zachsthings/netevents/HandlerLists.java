@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import org.bukkit.event.Event;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.HandlerList;
+import org.bukkit.plugin.RegisteredListener;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Finds the {@link HandlerList} for event classes, to check whether received events have any local listeners,
+ * and the event types registered listeners handle.
+ */
+class HandlerLists {
+    private static final Object NO_LIST = new Object();
+    private final ConcurrentMap<Class<?>, Object> lists = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, Set<String>> listenerTypes = new ConcurrentHashMap<>();
+    // Listener arrays seen by the last findListenedTypes call, and its result. Main thread only
+    private final Map<HandlerList, RegisteredListener[]> checkedListeners = new IdentityHashMap<>();
+    private Set<String> listenedTypes = Collections.emptySet();
+
+    /**
+     * Check whether any listeners are registered for an event type.
+     *
+     * @param type The event class
+     * @return Whether the event has listeners, or true if its handler list can't be found
+     */
+    public boolean hasListeners(Class<? extends Event> type) {
+        Object list = lists.get(type);
+        if (list == null) {
+            list = findHandlerList(type);
+            lists.putIfAbsent(type, list);
+        }
+        return list == NO_LIST || ((HandlerList) list).getRegisteredListeners().length > 0;
+    }
+
+    /**
+     * Find the event types handled by all registered listeners, from their {@link EventHandler} methods.
+     * Handler lists replace their listener array whenever a listener is registered or unregistered,
+     * so the listeners are only checked again once one of the arrays has changed. Must be called from the main thread.
+     *
+     * @return The class names of the handled events
+     */
+    public Set<String> findListenedTypes() {
+        final List<HandlerList> handlerLists = HandlerList.getHandlerLists();
+        boolean changed = handlerLists.size() != checkedListeners.size();
+        if (changed) {
+            checkedListeners.clear();
+        }
+        for (HandlerList list : handlerLists) {
+            final RegisteredListener[] listeners = list.getRegisteredListeners();
+            if (checkedListeners.put(list, listeners) != listeners) {
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return listenedTypes;
+        }
+
+        final Set<String> ret = new HashSet<>();
+        for (RegisteredListener[] listeners : checkedListeners.values()) {
+            for (RegisteredListener listener : listeners) {
+                final Class<?> listenerClass = listener.getListener().getClass();
+                Set<String> types = listenerTypes.get(listenerClass);
+                if (types == null) {
+                    types = findHandledTypes(listenerClass);
+                    listenerTypes.putIfAbsent(listenerClass, types);
+                }
+                ret.addAll(types);
+            }
+        }
+        listenedTypes = Collections.unmodifiableSet(ret);
+        return listenedTypes;
+    }
+
+    private static Set<String> findHandledTypes(Class<?> listenerClass) {
+        final Set<String> ret = new HashSet<>();
+        for (Class<?> clazz = listenerClass; clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+            for (Method method : clazz.getDeclaredMethods()) {
+                final Class<?>[] params = method.getParameterTypes();
+                if (method.isAnnotationPresent(EventHandler.class) && params.length == 1 && Event.class.isAssignableFrom(params[0])) {
+                    ret.add(params[0].getName());
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Look up the handler list the same way Bukkit does when registering listeners,
+     * using the static {@code getHandlerList()} method of the class or its nearest superclass declaring one.
+     */
+    private static Object findHandlerList(Class<?> type) {
+        for (Class<?> clazz = type; clazz != null && clazz != Event.class; clazz = clazz.getSuperclass()) {
+            try {
+                final Method method = clazz.getDeclaredMethod("getHandlerList");
+                method.setAccessible(true);
+                final Object list = method.invoke(null);
+                return list instanceof HandlerList ? list : NO_LIST;
+            } catch (NoSuchMethodException e) {
+                continue;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return NO_LIST;
+            }
+        }
+        return NO_LIST;
+    }
+}
@@ -16,25 +16,32 @@
 package com.zachsthings.netevents;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 
 /**
-* Thread able to handle IO operations
+* Task able to handle IO operations on its own thread
  *
- * Provides some utility for IO threads
+ * Provides some utility for IO threads. The thread may be virtual, see {@link IOThreads}.
 */
-abstract class IOThread extends Thread {
+abstract class IOThread implements Runnable {
     protected final Connection conn;
     protected final SocketChannel chan;
-    protected final ByteBuffer headerBuf = ByteBuffer.allocateDirect(1 + 4);
+    private final Thread thread;
 
     public IOThread(String name, Connection conn) throws IOException {
-        super("NetEvents-" + name + "-" + conn.getRemoteAddress());
         this.conn = conn;
         this.chan = conn.getChannel();
+        this.thread = conn.getPlugin().newIOThread(this, "NetEvents-" + name + "-" + conn.getRemoteAddress());
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void interrupt() {
+        thread.interrupt();
     }
 
     @Override
@@ -52,6 +59,8 @@ abstract class IOThread extends Thread {
             conn.close();
         } catch (IOException e) {
             conn.getPlugin().getLogger().log(Level.SEVERE, "Error occurred while closing connection " + conn.getRemoteAddress(), e);
+        } finally {
+            conn.ioThreadStopped();
         }
     }
 
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Creates threads for blocking IO, optionally as virtual threads.
+ *
+ * Virtual threads are looked up reflectively so NetEvents still loads on JVMs that predate them.
+ */
+class IOThreads {
+    private static final Method OF_VIRTUAL, UNSTARTED;
+
+    static {
+        Method ofVirtual = null, unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            ofVirtual.invoke(null); // Throws when virtual threads are a disabled preview feature
+        } catch (NoSuchMethodException | ClassNotFoundException | IllegalAccessException | InvocationTargetException e) {
+            ofVirtual = null;
+            unstarted = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    private IOThreads() {
+    }
+
+    /**
+     * @return Whether the running JVM can create virtual threads
+     */
+    public static boolean virtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Create a new, unstarted thread.
+     *
+     * @param task The task the thread will run
+     * @param name The thread's name
+     * @param virtual Whether to create a virtual thread. Ignored if {@link #virtualThreadsSupported()} is false
+     * @return The new thread
+     */
+    public static Thread newThread(Runnable task, String name, boolean virtual) {
+        final Thread ret;
+        if (virtual && virtualThreadsSupported()) {
+            try {
+                ret = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("Unable to create virtual thread", e);
+            }
+        } else {
+            ret = new Thread(task);
+        }
+        ret.setName(name);
+        return ret;
+    }
+}
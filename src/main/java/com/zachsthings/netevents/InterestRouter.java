@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import com.zachsthings.netevents.packet.LinkStatePacket;
+import org.bukkit.event.Event;
+
+import java.util.*;
+
+/**
+ * Tracks which event types this server has listeners for. They are announced with this server's link state,
+ * so each server can work out which branches of an event's spanning tree lead to a server that wants it.
+ *
+ * Sharing interests through link states means servers that connect later learn them along with the rest of the network,
+ * and routing only ever works from one consistent view of each server.
+ *
+ * Bukkit has no event for listeners being registered, so they are checked every second. Checks are cheap when nothing changed,
+ * see {@link HandlerLists#findListenedTypes()}, and a change costs one flooded link state.
+ * Until listeners have been checked, this server asks for every event so nothing is lost at startup.
+ */
+class InterestRouter {
+    private final NetEventsPlugin plugin;
+    private volatile Set<String> localInterests = Collections.singleton(LinkStatePacket.ALL_TYPES);
+
+    public InterestRouter(NetEventsPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Check whether a set of interests includes an event type.
+     * Listeners for an event also receive its subclasses, so superclasses are checked too.
+     *
+     * @param interests Class names listened for
+     * @param type The event class
+     * @return Whether the event is wanted
+     */
+    public static boolean matches(Set<String> interests, Class<?> type) {
+        if (interests.contains(LinkStatePacket.ALL_TYPES)) {
+            return true;
+        }
+        for (Class<?> clazz = type; clazz != null && clazz != Event.class; clazz = clazz.getSuperclass()) {
+            if (interests.contains(clazz.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Class names of the event types this server listens for, or {@link LinkStatePacket#ALL_TYPES}
+     */
+    public Set<String> getLocalInterests() {
+        return localInterests;
+    }
+
+    /**
+     * Check this server's listeners, and announce them if they changed. Must be called from the main thread.
+     */
+    public void refreshLocal() {
+        final Set<String> local = plugin.getNetEventsConfig().useInterestRouting() ? plugin.findListenedTypes()
+                : Collections.singleton(LinkStatePacket.ALL_TYPES);
+        if (!local.equals(localInterests)) {
+            localInterests = Collections.unmodifiableSet(local);
+            plugin.getRoutingTable().refresh();
+        }
+    }
+}
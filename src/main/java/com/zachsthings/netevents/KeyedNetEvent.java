@@ -0,0 +1,29 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+/**
+ * An event carrying the latest state of something, where only the newest event for each key matters.
+ *
+ * While waiting to be sent to a server, or to be handled on the main thread, an event replaces any queued event
+ * of the same type with the same key, keeping its place in the queue. Listeners may not see every event.
+ */
+public interface KeyedNetEvent {
+    /**
+     * @return What this event is the state of, such as a server or player name. Null if this event must not replace others
+     */
+    String getStateKey();
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Unbounded lock-free queue for many producer threads and a single consumer thread.
+ * Producers only contend on one atomic swap. The consumer may briefly see the queue as empty while an element is being added.
+ *
+ * @param <E> The element type
+ */
+class MpscQueue<E> {
+    private static class Node<E> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Node, Node> NEXT = AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+        private E value;
+        private volatile Node<E> next;
+
+        private Node(E value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<E>> head; // Most recently added node, swapped by producers
+    private Node<E> tail; // Node before the next to be polled, only accessed by the consumer
+    private final AtomicInteger size = new AtomicInteger();
+
+    public MpscQueue() {
+        tail = new Node<>(null);
+        head = new AtomicReference<>(tail);
+    }
+
+    /**
+     * Add an element. Safe to call from any thread.
+     *
+     * @param value The element
+     */
+    public void offer(E value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        final Node<E> node = new Node<>(value);
+        size.incrementAndGet();
+        final Node<E> prev = head.getAndSet(node);
+        Node.NEXT.lazySet(prev, node);
+    }
+
+    /**
+     * Remove the oldest element. Only call from the consumer thread.
+     *
+     * @return The element, or null if the queue is empty
+     */
+    public E poll() {
+        final Node<E> next = tail.next;
+        if (next == null) {
+            return null;
+        }
+        final E value = next.value;
+        next.value = null;
+        tail = next;
+        size.decrementAndGet();
+        return value;
+    }
+
+    /**
+     * @return The approximate number of queued elements
+     */
+    public int size() {
+        return Math.max(0, size.get());
+    }
+}
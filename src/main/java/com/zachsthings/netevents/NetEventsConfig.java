@@ -15,13 +15,21 @@
  */
 package com.zachsthings.netevents;
 
+import com.zachsthings.netevents.packet.EventPacket;
 import org.bukkit.configuration.Configuration;
+import org.bukkit.configuration.ConfigurationSection;
 
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.Deflater;
 
 /**
  * Contains the immutable data from one configuration instance.
@@ -31,10 +39,70 @@ public class NetEventsConfig {
 	 * The default port NetEvents listens at and connects to when no other is specified
 	 */
     public static final int DEFAULT_PORT = 25566;
+
+	/**
+	 * How connection IO is performed
+	 */
+    public static enum IOMode {
+        /**
+         * A small fixed number of selector threads handle IO for all connections
+         */
+        SELECTOR,
+        /**
+         * Each connection has its own input and output thread
+         */
+        THREADS,
+        /**
+         * Like {@link #THREADS}, but using virtual threads when the JVM supports them
+         */
+        VIRTUAL_THREADS
+    }
+
+	/**
+	 * What to do when a packet is sent to a server whose send queue is full
+	 */
+    public static enum OverflowPolicy {
+        /**
+         * Wait until there is room in the queue
+         */
+        BLOCK,
+        /**
+         * Drop the packet being sent
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest queued packets to make room
+         */
+        DROP_OLDEST,
+        /**
+         * Close the connection to the slow server
+         */
+        DISCONNECT
+    }
+
     private final SocketAddress listenAddress;
     private final List<SocketAddress> connectAddresses = new ArrayList<>();
     private final boolean defaultDebugMode;
     private final String passphrase;
+    private final int eventCacheCapacity;
+    private final long eventCacheTtl;
+    private final IOMode ioMode;
+    private final int ioThreads;
+    private final int writeBatchPackets, writeBatchBytes;
+    private final int maxFrameSize;
+    private final boolean directReceiveBuffers;
+    private final int receiveBufferPoolSize;
+    private final int sendQueuePackets;
+    private final long sendQueueBytes;
+    private final OverflowPolicy sendQueueOverflow;
+    private final boolean interestRouting;
+    private final Set<String> groups;
+    private final int eventTtl;
+    private final int asyncThreads;
+    private final boolean compression;
+    private final int compressionThreshold, compressionLevel;
+    private final long handlerBudgetNanos, minHandlerBudgetNanos;
+    private final Map<UUID, Integer> peerWeights = new HashMap<>();
 
     public NetEventsConfig(Configuration config) {
         listenAddress = toSocketAddr(config.getString("listen-at"));
@@ -45,6 +113,34 @@ public class NetEventsConfig {
         }
         defaultDebugMode = config.getBoolean("debug");
         passphrase = config.getString("passphrase");
+        eventCacheCapacity = Math.max(1, config.getInt("event-cache.capacity", NetEventsPlugin.EVENT_CACHE_COUNT));
+        eventCacheTtl = config.getLong("event-cache.ttl", 0);
+        ioMode = IOMode.valueOf(config.getString("io-mode", "selector").toUpperCase().replace('-', '_'));
+        final int configuredThreads = config.getInt("io-threads", 0);
+        ioThreads = configuredThreads > 0 ? configuredThreads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        writeBatchPackets = Math.max(1, config.getInt("write-batch.max-packets", 64));
+        writeBatchBytes = Math.max(1, config.getInt("write-batch.max-bytes", 64 * 1024));
+        maxFrameSize = Math.max(0, config.getInt("max-frame-size", 8 * 1024 * 1024));
+        directReceiveBuffers = config.getBoolean("receive-buffers.direct", false);
+        receiveBufferPoolSize = Math.max(0, config.getInt("receive-buffers.pool-size", 64));
+        sendQueuePackets = Math.max(1, config.getInt("send-queue.max-packets", 10000));
+        sendQueueBytes = Math.max(1, config.getLong("send-queue.max-bytes", 16 * 1024 * 1024));
+        sendQueueOverflow = OverflowPolicy.valueOf(config.getString("send-queue.overflow", "drop-oldest").toUpperCase().replace('-', '_'));
+        interestRouting = config.getBoolean("interest-routing", true);
+        groups = Collections.unmodifiableSet(new HashSet<>(config.getStringList("groups")));
+        handlerBudgetNanos = toNanos(config.getDouble("packet-handling.max-millis", 10));
+        minHandlerBudgetNanos = toNanos(config.getDouble("packet-handling.min-millis", 1));
+        final ConfigurationSection weights = config.getConfigurationSection("packet-handling.weights");
+        if (weights != null) {
+            for (String server : weights.getKeys(false)) {
+                peerWeights.put(UUID.fromString(server), Math.max(1, weights.getInt(server)));
+            }
+        }
+        compression = config.getBoolean("compression.enabled", false);
+        compressionThreshold = Math.max(0, config.getInt("compression.threshold", 256));
+        compressionLevel = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, config.getInt("compression.level", Deflater.BEST_SPEED)));
+        asyncThreads = Math.max(1, config.getInt("async-threads", 2));
+        eventTtl = Math.max(1, Math.min(EventPacket.MAX_TTL, config.getInt("event-ttl", EventPacket.DEFAULT_TTL)));
     }
 
 	/**
@@ -74,10 +170,223 @@ public class NetEventsConfig {
         return defaultDebugMode;
     }
 
+	/**
+	 * Returns the maximum number of event UUIDs remembered to detect duplicate events
+	 *
+	 * @return The duplicate event cache capacity
+	 */
+    public int getEventCacheCapacity() {
+        return eventCacheCapacity;
+    }
+
+	/**
+	 * Returns how long an event UUID is remembered for duplicate detection, in seconds.
+	 * Values {@code <= 0} mean entries are only evicted once the cache is full.
+	 *
+	 * @return The duplicate event cache TTL in seconds
+	 */
+    public long getEventCacheTtl() {
+        return eventCacheTtl;
+    }
+
+	/**
+	 * Returns how connection IO should be performed
+	 *
+	 * @return The IO mode
+	 */
+    public IOMode getIOMode() {
+        return ioMode;
+    }
+
+	/**
+	 * Returns the number of selector threads to use when in {@link IOMode#SELECTOR} mode.
+	 * Defaults to half the number of available processors.
+	 *
+	 * @return The number of selector threads
+	 */
+    public int getIOThreads() {
+        return ioThreads;
+    }
+
+	/**
+	 * Returns the maximum number of queued packets written to a connection at once
+	 *
+	 * @return The maximum packets per write batch
+	 */
+    public int getWriteBatchPackets() {
+        return writeBatchPackets;
+    }
+
+	/**
+	 * Returns the number of bytes after which no more packets are added to a write batch.
+	 * A single packet larger than this is still written as its own batch.
+	 *
+	 * @return The maximum bytes per write batch
+	 */
+    public int getWriteBatchBytes() {
+        return writeBatchBytes;
+    }
+
+	/**
+	 * Returns the largest frame payload accepted from a remote server.
+	 * Connections sending larger frames are closed.
+	 *
+	 * @return The maximum frame size in bytes
+	 */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+	/**
+	 * Returns whether received frames are read into direct buffers
+	 *
+	 * @return Whether receive buffers are direct
+	 */
+    public boolean useDirectReceiveBuffers() {
+        return directReceiveBuffers;
+    }
+
+	/**
+	 * Returns the number of idle receive buffers kept for reuse, per buffer size
+	 *
+	 * @return The receive buffer pool size
+	 */
+    public int getReceiveBufferPoolSize() {
+        return receiveBufferPoolSize;
+    }
+
+	/**
+	 * Returns the maximum number of packets queued to be sent to one server
+	 *
+	 * @return The send queue's packet limit
+	 */
+    public int getSendQueuePackets() {
+        return sendQueuePackets;
+    }
+
+	/**
+	 * Returns the maximum number of bytes queued to be sent to one server
+	 *
+	 * @return The send queue's byte limit
+	 */
+    public long getSendQueueBytes() {
+        return sendQueueBytes;
+    }
+
+	/**
+	 * Returns what happens when a server's send queue is full
+	 *
+	 * @return The overflow policy
+	 */
+    public OverflowPolicy getSendQueueOverflow() {
+        return sendQueueOverflow;
+    }
+
+	/**
+	 * Whether this server only announces the event types it has listeners for.
+	 * When false, every event is sent to this server.
+	 *
+	 * @return Whether interest-based routing is used
+	 */
+    public boolean useInterestRouting() {
+        return interestRouting;
+    }
+
+	/**
+	 * The groups this server is in, which events can be sent to with {@link NetEventsPlugin#sendToGroup(String, org.bukkit.event.Event)}
+	 *
+	 * @return The group names
+	 */
+    public Set<String> getGroups() {
+        return groups;
+    }
+
+	/**
+	 * Returns the number of times events called on this server may be passed from one server to another,
+	 * unless set for their type with {@link NetEventsPlugin#setEventTtl(Class, int)}
+	 *
+	 * @return The default event time to live
+	 */
+    public int getEventTtl() {
+        return eventTtl;
+    }
+
+	/**
+	 * Returns the longest time spent handling received packets on the main thread each tick, in nanoseconds.
+	 * Used while the server runs at full speed.
+	 *
+	 * @return The packet handling time budget
+	 */
+    public long getHandlerBudgetNanos() {
+        return handlerBudgetNanos;
+    }
+
+	/**
+	 * Returns the time spent handling received packets each tick when the server is lagging, in nanoseconds.
+	 * The budget shrinks towards this as ticks take longer.
+	 *
+	 * @return The minimum packet handling time budget
+	 */
+    public long getMinHandlerBudgetNanos() {
+        return minHandlerBudgetNanos;
+    }
+
+	/**
+	 * Returns how many packets from a server are handled each time its turn comes up,
+	 * relative to other servers, when packets from several servers are waiting on the main thread.
+	 *
+	 * @param server The UUID of the server, may be null if it is not known yet
+	 * @return The server's weight, 1 unless configured
+	 */
+    public int getPeerWeight(UUID server) {
+        final Integer weight = server == null ? null : peerWeights.get(server);
+        return weight == null ? 1 : weight;
+    }
+
+	/**
+	 * Returns the number of worker threads calling {@link AsyncNetEvent}s. Only read when NetEvents is enabled
+	 *
+	 * @return The number of async event threads
+	 */
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+	/**
+	 * Whether packets sent to servers that support it are compressed
+	 *
+	 * @return Whether compression is enabled
+	 */
+    public boolean useCompression() {
+        return compression;
+    }
+
+	/**
+	 * Returns the size in bytes below which packets are sent uncompressed
+	 *
+	 * @return The compression threshold
+	 */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+	/**
+	 * Returns the deflate compression level, from 1 (fastest) to 9 (smallest)
+	 *
+	 * @return The compression level
+	 */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
     String getPassphrase() {
         return passphrase;
     }
 
+    private static long toNanos(double millis) {
+        return Math.max(0, (long) (millis * 1000000));
+    }
+
     private InetSocketAddress toSocketAddr(String addr) {
         final String[] listenAddr = addr.split(":");
 
@@ -15,6 +15,7 @@
  */
 package com.zachsthings.netevents;
 
+import com.zachsthings.netevents.codec.EventCodecRegistry;
 import com.zachsthings.netevents.packet.EventPacket;
 import com.zachsthings.netevents.sec.AESSocketWrapper;
 import com.zachsthings.netevents.sec.SocketWrapper;
@@ -25,9 +26,16 @@ import org.bukkit.event.Event;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.io.IOException;
-import java.io.Serializable;
 import java.net.SocketAddress;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
@@ -35,14 +43,26 @@ import java.util.logging.Level;
  */
 public class NetEventsPlugin extends JavaPlugin {
     /**
-     * Number of event UUID's to keep to prevent duplicate events. Greater number potentially decreases duplicate events received.
+     * Default number of event UUID's to keep to prevent duplicate events. Greater number potentially decreases duplicate events received.
      */
     public static final int EVENT_CACHE_COUNT = 5000;
 
-    private final LinkedList<UUID> processedEvents = new LinkedList<>();
-    private final Map<SocketAddress, Forwarder> forwarders = new HashMap<>();
+    private volatile EventDedupCache processedEvents;
+    private final Map<SocketAddress, Forwarder> forwarders = new ConcurrentHashMap<>();
+    private final EventCodecRegistry codecRegistry = new EventCodecRegistry();
+    private final HandlerLists handlerLists = new HandlerLists();
+    private final InterestRouter interestRouter = new InterestRouter(this);
+    private final RoutingTable routingTable = new RoutingTable(this);
+    private final RpcManager rpcManager = new RpcManager(this);
+    private final Map<Class<? extends Event>, Integer> eventTtls = new ConcurrentHashMap<>();
+    // AsyncNetEvent types received as synchronous Bukkit events, warned about once each
+    private final Set<Class<?>> syncAsyncTypes = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+    private final AtomicLong expiredEvents = new AtomicLong();
     private Receiver receiver;
+    private SelectorLoopGroup selectorLoops;
+    private BufferPool bufferPool;
     private PacketHandlerQueue handlerQueue;
+    private ExecutorService asyncDispatcher;
     private ReconnectTask reconnectTask;
     private NetEventsConfig config;
     private ServerUUID uidHolder;
@@ -59,6 +79,16 @@ public class NetEventsPlugin extends JavaPlugin {
         reconnectTask = new ReconnectTask();
         getServer().getScheduler().runTaskTimerAsynchronously(this, reconnectTask, 0, 20);
         reloadConfig();
+        asyncDispatcher = Executors.newFixedThreadPool(config.getAsyncThreads(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "NetEvents-async-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         if (config.getPassphrase().equals("changeme")) {
             getLogger().severe("Passphrase has not been changed from default! NetEvents will not enable until this happens");
             getPluginLoader().disablePlugin(this);
@@ -78,6 +108,19 @@ public class NetEventsPlugin extends JavaPlugin {
         debugMode = config.defaultDebugMode();
 
         getServer().getPluginManager().registerEvents(new PingListener(this), this);
+        getServer().getScheduler().runTaskTimer(this, new Runnable() {
+            @Override
+            public void run() {
+                interestRouter.refreshLocal();
+                routingTable.expireStates();
+            }
+        }, 0, 20);
+        getServer().getScheduler().runTaskTimer(this, new Runnable() {
+            @Override
+            public void run() {
+                rpcManager.expireCalls();
+            }
+        }, 1, 1);
     }
 
     @Override
@@ -87,13 +130,24 @@ public class NetEventsPlugin extends JavaPlugin {
         } catch (IOException e) {
             getLogger().log(Level.SEVERE, "Unable to properly disconnect network connections", e);
         }
+        if (selectorLoops != null) {
+            selectorLoops.shutdown();
+            selectorLoops = null;
+        }
         handlerQueue.cancel();
+        if (asyncDispatcher != null) {
+            asyncDispatcher.shutdown();
+            asyncDispatcher = null;
+        }
+        rpcManager.failAll();
     }
 
     @Override
     public void reloadConfig() {
         super.reloadConfig();
         this.config = new NetEventsConfig(getConfig());
+        this.processedEvents = new EventDedupCache(config.getEventCacheCapacity(), config.getEventCacheTtl(), TimeUnit.SECONDS);
+        this.bufferPool = new BufferPool(config.useDirectReceiveBuffers(), config.getReceiveBufferPoolSize());
     }
 
     /**
@@ -120,6 +174,22 @@ public class NetEventsPlugin extends JavaPlugin {
     }
 
     private void connect() throws IOException {
+        if (config.getIOMode() == NetEventsConfig.IOMode.SELECTOR) {
+            if (selectorLoops != null && selectorLoops.size() != config.getIOThreads()) {
+                selectorLoops.shutdown();
+                selectorLoops = null;
+            }
+            if (selectorLoops == null) {
+                selectorLoops = new SelectorLoopGroup(config.getIOThreads(), getLogger());
+            }
+        } else if (selectorLoops != null) {
+            selectorLoops.shutdown();
+            selectorLoops = null;
+        }
+        if (config.getIOMode() == NetEventsConfig.IOMode.VIRTUAL_THREADS && !IOThreads.virtualThreadsSupported()) {
+            getLogger().warning("Virtual threads are not supported by this JVM, using platform threads for connection IO");
+        }
+
         if (receiver == null) {
             receiver = new Receiver(this, config.getListenAddress());
             receiver.bind();
@@ -170,6 +240,37 @@ public class NetEventsPlugin extends JavaPlugin {
         return handlerQueue;
     }
 
+    /**
+     * Return the configuration currently in use. Replaced with a new instance when the configuration is reloaded.
+     *
+     * @return The current configuration
+     */
+    public NetEventsConfig getNetEventsConfig() {
+        return config;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return The selector loops performing connection IO, or null when each connection uses its own threads
+     */
+    SelectorLoopGroup getSelectorLoops() {
+        return selectorLoops;
+    }
+
+    /**
+     * Create a thread for blocking connection IO, virtual if configured and supported.
+     *
+     * @param task The task to run
+     * @param name The thread name
+     * @return A new unstarted thread
+     */
+    Thread newIOThread(Runnable task, String name) {
+        return IOThreads.newThread(task, name, config.getIOMode() == NetEventsConfig.IOMode.VIRTUAL_THREADS);
+    }
+
     ReconnectTask getReconnectTask() {
         return reconnectTask;
     }
@@ -179,7 +280,10 @@ public class NetEventsPlugin extends JavaPlugin {
     }
 
     void removeForwarder(Forwarder f) {
-        forwarders.remove(f.getRemoteAddress());
+        final SocketAddress addr = f.getRemoteAddress();
+        if (addr != null) {
+            forwarders.remove(addr);
+        }
     }
 
     /**
@@ -215,41 +319,274 @@ public class NetEventsPlugin extends JavaPlugin {
      * Calls the passed event on this server and forwards it to all
      * connected servers to be called remotely.
      *
-     * Events must be serializable.
+     * Events must be serializable, unless a codec is registered for them with {@link #getCodecRegistry()}.
      * Remote servers will ignore events they do not know the class of.
      *
      * @param event The event to call
      * @param <T> The event type
      * @return The event (same as passed, just here for utility)
      */
-    public <T extends Event & Serializable> T callEvent(T event) {
-        callEvent(new EventPacket(event), null);
+    public <T extends Event> T callEvent(T event) {
+        callEvent(new EventPacket(event, getServerUUID(), null, null, getEventTtl(event.getClass()), codecRegistry), null);
+        return event;
+    }
+
+    /**
+     * Calls an event on one server only. The event is passed through other servers if the target isn't directly connected.
+     * Calling an event on this server's own UUID calls it locally.
+     *
+     * @param server The UUID of the server to call the event on
+     * @param event The event to call
+     * @param <T> The event type
+     * @return The event (same as passed, just here for utility)
+     * @see #callEvent(Event)
+     */
+    public <T extends Event> T sendTo(UUID server, T event) {
+        callEvent(new EventPacket(event, getServerUUID(), server, null, getEventTtl(event.getClass()), codecRegistry), null);
+        return event;
+    }
+
+    /**
+     * Calls an event on every server in a group, including this one if it is in the group.
+     * Groups are set in each server's configuration.
+     *
+     * @param group The group to call the event on
+     * @param event The event to call
+     * @param <T> The event type
+     * @return The event (same as passed, just here for utility)
+     * @see #callEvent(Event)
+     */
+    public <T extends Event> T sendToGroup(String group, T event) {
+        callEvent(new EventPacket(event, getServerUUID(), null, group, getEventTtl(event.getClass()), codecRegistry), null);
         return event;
     }
 
     /**
      * Internal method to allow additional flexibility from events.
+     * Received events are only decoded if they have listeners on this server.
+     * Events are sent along the spanning tree for their origin in the {@link RoutingTable}, and are not sent on once their time to live runs out.
+     * Must be called from the main thread, unless the event is an {@link AsyncNetEvent}, which is called on a worker thread.
+     * May wait for room in send queues, depending on the overflow policy.
      *
      * @see {@link #callEvent(org.bukkit.event.Event)} to send events
      * @param packet The event packet to send
      * @param ignoreTo The forwarder to not send this packet to. This way we avoid
      */
-    public synchronized void callEvent(EventPacket packet, Forwarder ignoreTo) {
-        while (processedEvents.size() > EVENT_CACHE_COUNT) {
-            processedEvents.removeLast();
-        }
-        if (processedEvents.contains(packet.getUid())) {
+    public void callEvent(EventPacket packet, Forwarder ignoreTo) {
+        callEvent(packet, ignoreTo, true);
+    }
+
+    /**
+     * Call an event received from another server on an IO thread, which must never wait for room in a send queue.
+     * With the {@link NetEventsConfig.OverflowPolicy#BLOCK} policy, the event isn't relayed to servers whose queues are full.
+     *
+     * @param packet The event packet, which must be an {@link AsyncNetEvent}
+     * @param from The forwarder the event was received from
+     */
+    void callEventFromIO(EventPacket packet, Forwarder from) {
+        callEvent(packet, from, false);
+    }
+
+    private void callEvent(EventPacket packet, Forwarder ignoreTo, boolean mayBlock) {
+        if (!processedEvents.markProcessed(packet.getUid())) {
             return;
         }
-        processedEvents.add(packet.getUid());
-        getServer().getPluginManager().callEvent(packet.getSendEvent());
+        if (!packet.isRelayOnly() && isCalledHere(packet) && hasListeners(packet.getType())) {
+            if (isAsync(packet.getType())) {
+                dispatchAsync(packet);
+            } else {
+                dispatch(packet);
+            }
+        }
 
         for (Forwarder f : forwarders.values()) {
-            if (ignoreTo != null && ignoreTo.equals(f)) {
+            if ((ignoreTo != null && ignoreTo.equals(f)) || !routingTable.shouldForward(packet, ignoreTo, f)) {
                 continue;
             }
-            f.write(packet);
+            if (packet.getTtl() <= 0) {
+                expiredEvents.incrementAndGet();
+                debug("Not forwarding " + packet + ", its time to live has run out");
+                break;
+            }
+            f.write(packet, mayBlock);
+        }
+    }
+
+    /**
+     * Set the time to live of events of a type called on this server: how many times they may be passed from one server to another.
+     * Also applies to subclasses without their own time to live.
+     *
+     * @param type The event type
+     * @param ttl The time to live, from 1 to {@link EventPacket#MAX_TTL}, or 0 to use the configured default
+     */
+    public void setEventTtl(Class<? extends Event> type, int ttl) {
+        if (ttl < 0 || ttl > EventPacket.MAX_TTL) {
+            throw new IllegalArgumentException("Event TTL must be between 0 and " + EventPacket.MAX_TTL + ", was " + ttl);
         }
+        if (ttl == 0) {
+            eventTtls.remove(type);
+        } else {
+            eventTtls.put(type, ttl);
+        }
+    }
+
+    /**
+     * Get the time to live of events of a type called on this server.
+     *
+     * @see #setEventTtl(Class, int)
+     * @param type The event type
+     * @return The time to live
+     */
+    public int getEventTtl(Class<? extends Event> type) {
+        for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+            final Integer ttl = eventTtls.get(clazz);
+            if (ttl != null) {
+                return ttl;
+            }
+        }
+        return config.getEventTtl();
+    }
+
+    /**
+     * @return The number of received events that were not forwarded because their time to live ran out
+     */
+    public long getExpiredEvents() {
+        return expiredEvents.get();
+    }
+
+    private void dispatch(EventPacket packet) {
+        try {
+            final Event event = packet.getSendEvent();
+            if (event != null) {
+                getServer().getPluginManager().callEvent(event);
+            } else {
+                debug("Unable to decode " + packet + ", a class or codec is missing");
+            }
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Unable to decode " + packet + ", not calling locally", e);
+        }
+    }
+
+    private void dispatchAsync(final EventPacket packet) {
+        final ExecutorService dispatcher = asyncDispatcher;
+        if (dispatcher == null) {
+            return;
+        }
+        packet.retain();
+        try {
+            dispatcher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        dispatchOffMainThread(packet);
+                    } catch (Exception e) {
+                        getLogger().log(Level.SEVERE, "Error calling " + packet + " asynchronously", e);
+                    } finally {
+                        packet.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            packet.release(); // Shutting down
+        }
+    }
+
+    /**
+     * Call an {@link AsyncNetEvent} on a worker thread. Bukkit only allows that for asynchronous events,
+     * so events decoded without running a constructor that calls {@code super(true)} are called on the main thread instead.
+     */
+    private void dispatchOffMainThread(final EventPacket packet) {
+        final Event event;
+        try {
+            event = packet.getSendEvent();
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "Unable to decode " + packet + ", not calling locally", e);
+            return;
+        }
+        if (event == null || event.isAsynchronous()) {
+            dispatch(packet);
+            return;
+        }
+        if (syncAsyncTypes.add(event.getClass())) {
+            getLogger().warning(event.getClass().getName() + " was received as a synchronous event, so it is called on the main thread."
+                    + " Give it a codec or @NetEvent, since Java serialization doesn't run its constructor");
+        }
+        packet.retain();
+        getServer().getScheduler().runTask(this, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatch(packet);
+                } finally {
+                    packet.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param type An event type
+     * @return Whether events of the type are called off the main thread
+     */
+    static boolean isAsync(Class<?> type) {
+        return AsyncNetEvent.class.isAssignableFrom(type);
+    }
+
+    private boolean isCalledHere(EventPacket packet) {
+        if (packet.getTargetServer() != null) {
+            return packet.getTargetServer().equals(getServerUUID());
+        }
+        return packet.getTargetGroup() == null || config.getGroups().contains(packet.getTargetGroup());
+    }
+
+    /**
+     * Check whether an event type has any listeners on this server. Safe to call from any thread.
+     *
+     * @param type The event class
+     * @return Whether the event type has listeners
+     */
+    boolean hasListeners(Class<? extends Event> type) {
+        return handlerLists.hasListeners(type);
+    }
+
+    /**
+     * Find the event types listened for on this server. Must be called from the main thread.
+     *
+     * @return The class names of the event types
+     */
+    Set<String> findListenedTypes() {
+        return handlerLists.findListenedTypes();
+    }
+
+    InterestRouter getInterestRouter() {
+        return interestRouter;
+    }
+
+    /**
+     * Returns this server's view of the network, used to route events.
+     *
+     * @return The routing table
+     */
+    public RoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+    /**
+     * Returns the manager for calls to other servers that return a response.
+     *
+     * @return The RPC manager
+     */
+    public RpcManager getRpcManager() {
+        return rpcManager;
+    }
+
+    /**
+     * Returns the registry of codecs used to encode events instead of Java serialization.
+     *
+     * @return The codec registry
+     */
+    public EventCodecRegistry getCodecRegistry() {
+        return codecRegistry;
     }
 
     public SocketWrapper getSocketWrapper() {
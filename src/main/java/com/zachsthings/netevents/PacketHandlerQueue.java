@@ -15,33 +15,88 @@
  */
 package com.zachsthings.netevents;
 
+import com.zachsthings.netevents.packet.EventPacket;
 import com.zachsthings.netevents.packet.Packet;
+import com.zachsthings.netevents.packet.ReferenceCounted;
 import org.bukkit.scheduler.BukkitTask;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 
 /**
- * Queue that brings packet handlers back on the main server thread
+ * Queue that brings packet handlers back on the main server thread.
+ * Each server's packets are queued separately and handled in weighted round-robin order,
+ * so a server sending a flood of packets can't delay the packets of every other server.
  */
 class PacketHandlerQueue implements Runnable {
-    private static class QueueEntry {
-        private final Packet pkt;
-        private final Forwarder conn;
+    /**
+     * A queued packet. Events with a coalescing key can be replaced by newer ones until the slot is taken
+     */
+    private static class Slot {
+        private final AtomicReference<Packet> packet;
+        private final String coalescingKey;
 
-        private QueueEntry(Packet pkt, Forwarder conn) {
-            this.pkt = pkt;
-            this.conn = conn;
+        private Slot(Packet packet, String coalescingKey) {
+            this.packet = new AtomicReference<>(packet);
+            this.coalescingKey = coalescingKey;
+        }
+
+        /**
+         * @return The replaced packet, or null if the slot has already been taken
+         */
+        private Packet replace(Packet replacement) {
+            Packet old;
+            do {
+                old = packet.get();
+                if (old == null) {
+                    return null;
+                }
+            } while (!packet.compareAndSet(old, replacement));
+            return old;
+        }
+    }
+
+    /**
+     * Packets received from one server, waiting to be handled
+     */
+    static class Inbound {
+        private final Forwarder forwarder;
+        private final MpscQueue<Slot> packets = new MpscQueue<>();
+        private final ConcurrentMap<String, Slot> keyed = new ConcurrentHashMap<>(); // Queued events by coalescing key
+        private final AtomicBoolean scheduled = new AtomicBoolean(); // Whether this is in the ready queue or the round-robin
+
+        Inbound(Forwarder forwarder) {
+            this.forwarder = forwarder;
+        }
+
+        /**
+         * @return The approximate number of packets waiting to be handled
+         */
+        public int size() {
+            return packets.size();
         }
     }
 
-    public static final int MAX_TIME = 25, EVENT_COUNT_THRESHOLD = 10;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
 
-    private final Queue<QueueEntry> toProcess = new LinkedList<QueueEntry>();
+    private final MpscQueue<Inbound> ready = new MpscQueue<>(); // Servers whose packets need handling, added by IO threads
+    private final ArrayDeque<Inbound> roundRobin = new ArrayDeque<>(); // Only accessed on the main thread
+    private final AtomicInteger backlog = new AtomicInteger();
     private final NetEventsPlugin plugin;
     private BukkitTask task = null;
 
+    // Only accessed on the main thread
+    private long lastRun, averageTick;
+    private long budget;
+    private int lastProcessed;
+    private long lastTime;
+
     public PacketHandlerQueue(NetEventsPlugin plugin) {
         this.plugin = plugin;
     }
@@ -56,24 +111,145 @@ class PacketHandlerQueue implements Runnable {
         }
     }
 
+    /**
+     * Queue a packet to be handled on the main thread.
+     * An event with a coalescing key replaces the queued event from the same server with the same key instead, taking its place in the queue.
+     *
+     * @param pack The packet
+     * @param conn The forwarder the packet was received from
+     */
     public void queuePacket(Packet pack, Forwarder conn) {
-        toProcess.add(new QueueEntry(pack, conn));
+        final Inbound inbound = conn.getInbound();
+        final String key = pack instanceof EventPacket ? ((EventPacket) pack).getCoalescingKey() : null;
+        if (key != null) {
+            final Slot queued = inbound.keyed.get(key);
+            final Packet replaced = queued == null ? null : queued.replace(pack);
+            if (replaced != null) {
+                ((EventPacket) replaced).release();
+                return;
+            }
+        }
+
+        final Slot slot = new Slot(pack, key);
+        if (key != null) {
+            inbound.keyed.put(key, slot);
+        }
+        backlog.incrementAndGet();
+        inbound.packets.offer(slot);
+        if (inbound.scheduled.compareAndSet(false, true)) {
+            ready.offer(inbound);
+        }
     }
 
+    /**
+     * Handle queued packets until this tick's time budget is spent.
+     * The budget is the configured maximum while the server keeps up with 20 ticks per second,
+     * and shrinks in proportion as ticks take longer, down to the configured minimum.
+     *
+     * Each turn, a server gets as many packets handled as its configured weight.
+     * The round-robin carries on from where it stopped in the next tick.
+     */
     @Override
     public void run() {
-        long startTime = System.currentTimeMillis();
-        QueueEntry entry;
-        while ((entry = toProcess.poll()) != null) {
-            try {
-                entry.pkt.handle(entry.conn);
-                if ((System.currentTimeMillis() - startTime) > MAX_TIME && toProcess.size() < EVENT_COUNT_THRESHOLD) {
+        final long startTime = System.nanoTime();
+        final NetEventsConfig config = plugin.getNetEventsConfig();
+        budget = updateBudget(startTime);
+        int processed = 0;
+        boolean outOfTime = false;
+        while (!outOfTime) {
+            Inbound inbound;
+            while ((inbound = ready.poll()) != null) {
+                roundRobin.addLast(inbound);
+            }
+            inbound = roundRobin.pollFirst();
+            if (inbound == null) {
+                break;
+            }
+
+            final int weight = config.getPeerWeight(inbound.forwarder.getRemoteServerUUID());
+            for (int i = 0; i < weight; ++i) {
+                final Slot slot = inbound.packets.poll();
+                if (slot == null) {
+                    break;
+                }
+                if (slot.coalescingKey != null) {
+                    inbound.keyed.remove(slot.coalescingKey, slot);
+                }
+                final Packet packet = slot.packet.getAndSet(null);
+                backlog.decrementAndGet();
+                ++processed;
+                handle(packet, inbound.forwarder);
+                if (System.nanoTime() - startTime >= budget) {
+                    outOfTime = true;
                     break;
                 }
-            } catch (Exception e) {
-                plugin.getLogger().log(Level.SEVERE, "Error occurred while handling packet from " + entry.pkt + ", skipping", e);
             }
+
+            if (inbound.size() == 0) {
+                inbound.scheduled.set(false);
+                // Packets queued after the check above may not have rescheduled this
+                if (inbound.size() == 0 || !inbound.scheduled.compareAndSet(false, true)) {
+                    continue;
+                }
+            }
+            roundRobin.addLast(inbound);
+        }
+        lastProcessed = processed;
+        lastTime = System.nanoTime() - startTime;
+    }
+
+    private void handle(Packet packet, Forwarder forwarder) {
+        try {
+            packet.handle(forwarder);
+        } catch (Exception e) {
+            plugin.getLogger().log(Level.SEVERE, "Error occurred while handling packet from " + packet + ", skipping", e);
+        } finally {
+            if (packet instanceof ReferenceCounted) {
+                ((ReferenceCounted) packet).release();
+            }
+        }
+    }
+
+    private long updateBudget(long now) {
+        if (lastRun != 0) {
+            final long tick = now - lastRun;
+            averageTick = averageTick == 0 ? tick : averageTick + (tick - averageTick) / 8;
+        }
+        lastRun = now;
+
+        final NetEventsConfig config = plugin.getNetEventsConfig();
+        final long max = config.getHandlerBudgetNanos(), min = Math.min(max, config.getMinHandlerBudgetNanos());
+        if (averageTick <= TICK_NANOS) {
+            return max;
         }
+        return Math.max(min, (long) (max * ((double) TICK_NANOS / averageTick)));
+    }
+
+    /**
+     * @return The number of packets handled in the last tick
+     */
+    public int getLastProcessed() {
+        return lastProcessed;
+    }
+
+    /**
+     * @return The time spent handling packets in the last tick, in nanoseconds
+     */
+    public long getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * @return The time packets could be handled for in the last tick, in nanoseconds
+     */
+    public long getBudget() {
+        return budget;
+    }
 
+    /**
+     * @return The approximate number of packets waiting to be handled
+     */
+    public int getBacklog() {
+        return Math.max(0, backlog.get());
     }
 }
@@ -19,16 +19,21 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
 
 /**
  * Receives new clients for usage
  */
 class Receiver implements Closeable {
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
     private final NetEventsPlugin plugin;
     private final SocketAddress bindAddress;
     private ServerSocketChannel server;
+    private SelectorLoop loop; // Only in selector mode
+    private Thread listenThread; // Only in thread modes
 
     public Receiver(NetEventsPlugin plugin, SocketAddress bindAddress) {
         this.plugin = plugin;
@@ -37,15 +42,41 @@ class Receiver implements Closeable {
 
     public void bind() throws IOException {
         server = ServerSocketChannel.open();
-        server.configureBlocking(true);
         server.bind(this.bindAddress);
-        new ListenThread().start();
+        final SelectorLoopGroup loops = plugin.getSelectorLoops();
+        if (loops != null) {
+            server.configureBlocking(false);
+            final SelectorLoop loop = this.loop = loops.next();
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        server.register(loop.getSelector(), SelectionKey.OP_ACCEPT, new AcceptHandler());
+                    } catch (ClosedChannelException ignore) {
+                    }
+                }
+            });
+        } else {
+            server.configureBlocking(true);
+            listenThread = plugin.newIOThread(new ListenTask(), "NetEvents-Listener");
+            listenThread.start();
+        }
     }
 
     @Override
     public void close() throws IOException {
         if (server != null) {
             server.close();
+            // Release the port before returning, so it can be bound again
+            if (loop != null) {
+                loop.deregister(server, true);
+            } else if (listenThread != null) {
+                try {
+                    listenThread.join(CLOSE_TIMEOUT_MILLIS); // The socket is only released once the thread blocked accepting leaves accept()
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
     }
 
@@ -53,20 +84,41 @@ class Receiver implements Closeable {
         return bindAddress;
     }
 
-    private class ListenThread extends Thread {
-        public ListenThread() {
-            super("NetEvents-Listener");
+    private void accepted(SocketChannel client) throws IOException {
+        plugin.debug("Received connection from " + client.getRemoteAddress());
+        Forwarder forward = new Forwarder(plugin);
+        forward.connect(client);
+        plugin.addForwarder(forward);
+    }
+
+    private class AcceptHandler implements SelectorLoop.Handler {
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            SocketChannel client;
+            while ((client = server.accept()) != null) {
+                try {
+                    accepted(client);
+                } catch (IOException e) {
+                    plugin.getLogger().log(Level.SEVERE, "Unable to set up connection from " + client.getRemoteAddress(), e);
+                    client.close();
+                }
+            }
         }
+
+        @Override
+        public void failed(Exception e) {
+            if (!(e instanceof ClosedChannelException)) {
+                plugin.getLogger().log(Level.SEVERE, "Error occurred while accepting connections on " + bindAddress, e);
+            }
+        }
+    }
+
+    private class ListenTask implements Runnable {
         @Override
         public void run() {
             try {
                 while (server.isOpen()) {
-                    SocketChannel client = server.accept();
-                    plugin.debug("Received connection from " + client.getRemoteAddress());
-                    Connection.configureSocketChannel(client);
-                    Forwarder forward = new Forwarder(plugin);
-                    forward.connect(client);
-                    plugin.addForwarder(forward);
+                    accepted(server.accept());
                 }
             } catch (ClosedChannelException ignore) {
             } catch (IOException e) {
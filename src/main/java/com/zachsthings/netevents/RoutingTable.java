@@ -0,0 +1,405 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import com.zachsthings.netevents.packet.EventPacket;
+import com.zachsthings.netevents.packet.LinkStatePacket;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Link-state view of the network, used to send each event along a spanning tree rooted at the server it was called on.
+ *
+ * Every server floods a {@link LinkStatePacket} listing its connections whenever they change.
+ * From these, each server computes the same breadth-first tree for every origin, so an event reaches each server exactly once.
+ * While the view is incomplete or servers disagree about it, events are flooded instead, with duplicates dropped by the event cache.
+ * States of servers that have been unreachable for a while are forgotten, since nothing would announce their removal.
+ *
+ * Events sent to one server follow the shortest path to it. Other events follow the origin's tree,
+ * skipping branches without any servers that listen for the event's type and are in its target group.
+ * Routing decisions read an immutable snapshot of the states, replaced whenever they change, so IO threads never wait for this table.
+ */
+public class RoutingTable {
+    // States may arrive before the links leading to their origin, so unreachable ones are kept this long first
+    private static final long UNREACHABLE_EXPIRY_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private static class LinkState {
+        private final long sequence;
+        private final SortedSet<UUID> neighbors; // Sorted so every server builds the same trees
+        private final Set<String> groups;
+        private final Set<String> interests;
+
+        private LinkState(long sequence, Set<UUID> neighbors, Set<String> groups, Set<String> interests) {
+            this.sequence = sequence;
+            this.neighbors = new TreeSet<>(neighbors);
+            this.groups = new HashSet<>(groups);
+            this.interests = new HashSet<>(interests);
+        }
+
+        private LinkStatePacket toPacket(UUID origin) {
+            return new LinkStatePacket(origin, sequence, neighbors, groups, interests);
+        }
+    }
+
+    /**
+     * The states at one point in time, with the trees built from them. Never modified once published.
+     */
+    private static class Snapshot {
+        private final Map<UUID, LinkState> states;
+        private final Map<UUID, Map<UUID, UUID>> trees = new HashMap<>(); // Origin -> server -> parent
+        // Origin -> event type and group -> servers on the way to one that wants it. Filled in as events are routed
+        private final ConcurrentMap<UUID, ConcurrentMap<String, Set<UUID>>> wantedPaths = new ConcurrentHashMap<>();
+
+        private Snapshot(Map<UUID, LinkState> states) {
+            this.states = new HashMap<>(states);
+            for (UUID origin : this.states.keySet()) {
+                trees.put(origin, buildTree(origin));
+            }
+        }
+
+        private boolean isLinked(UUID a, UUID b) {
+            final LinkState stateA = states.get(a), stateB = states.get(b);
+            return stateA != null && stateB != null && stateA.neighbors.contains(b) && stateB.neighbors.contains(a);
+        }
+
+        /**
+         * Build the shortest path tree rooted at a server. Only links both ends have announced are used.
+         */
+        private Map<UUID, UUID> buildTree(UUID origin) {
+            final Map<UUID, UUID> parents = new HashMap<>();
+            parents.put(origin, null);
+            final Deque<UUID> queue = new ArrayDeque<>();
+            queue.add(origin);
+            while (!queue.isEmpty()) {
+                final UUID server = queue.poll();
+                for (UUID neighbor : states.get(server).neighbors) {
+                    if (!parents.containsKey(neighbor) && isLinked(server, neighbor)) {
+                        parents.put(neighbor, server);
+                        queue.add(neighbor);
+                    }
+                }
+            }
+            return Collections.unmodifiableMap(parents);
+        }
+
+        /**
+         * @param origin The root
+         * @return Map from each reachable server to its parent in the origin's tree. The origin maps to null
+         */
+        private Map<UUID, UUID> getTree(UUID origin) {
+            final Map<UUID, UUID> parents = trees.get(origin);
+            return parents == null ? Collections.<UUID, UUID>emptyMap() : parents;
+        }
+    }
+
+    private final NetEventsPlugin plugin;
+    private final Map<UUID, LinkState> states = new HashMap<>();
+    private volatile Snapshot snapshot = new Snapshot(Collections.<UUID, LinkState>emptyMap()); // Replaced when states change
+    private final Map<UUID, Long> unreachableSince = new HashMap<>(); // Origin -> System.nanoTime() when it was first seen unreachable
+    // Starts from the clock so our announcements after a restart are newer than those from before it
+    private long sequence = System.currentTimeMillis() * 1000;
+
+    RoutingTable(NetEventsPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Called when a connected server has identified itself. Sends it everything we know about the network.
+     *
+     * @param forwarder The newly identified server
+     */
+    public void neighborConnected(Forwarder forwarder) {
+        final LinkStatePacket own;
+        final List<LinkStatePacket> known = new ArrayList<>();
+        synchronized (this) {
+            own = advertise();
+            for (Map.Entry<UUID, LinkState> entry : states.entrySet()) {
+                if (!entry.getKey().equals(plugin.getServerUUID())) {
+                    known.add(entry.getValue().toPacket(entry.getKey()));
+                }
+            }
+        }
+        broadcast(own, null);
+        for (LinkStatePacket packet : known) {
+            forwarder.writeRequired(packet);
+        }
+    }
+
+    /**
+     * Announce this server's connections, groups and interests if they changed.
+     * Called from the main thread when a connection closes, the configuration is reloaded, or local listeners change.
+     */
+    public void refresh() {
+        final LinkStatePacket packet;
+        synchronized (this) {
+            packet = advertise();
+        }
+        broadcast(packet, null);
+    }
+
+    /**
+     * Forget the states of servers that have been unreachable from this one for longer than {@link #UNREACHABLE_EXPIRY_NANOS}.
+     * Called periodically from the main thread.
+     */
+    public synchronized void expireStates() {
+        final UUID self = plugin.getServerUUID();
+        final Map<UUID, UUID> reachable = snapshot.getTree(self);
+        final long now = System.nanoTime();
+        boolean changed = false;
+        for (Iterator<UUID> it = states.keySet().iterator(); it.hasNext();) {
+            final UUID origin = it.next();
+            if (origin.equals(self) || reachable.containsKey(origin)) {
+                unreachableSince.remove(origin);
+                continue;
+            }
+            final Long since = unreachableSince.get(origin);
+            if (since == null) {
+                unreachableSince.put(origin, now);
+            } else if (now - since >= UNREACHABLE_EXPIRY_NANOS) {
+                it.remove();
+                unreachableSince.remove(origin);
+                changed = true;
+                plugin.debug("Forgetting link state of unreachable server " + origin);
+            }
+        }
+        if (changed) {
+            publish();
+        }
+    }
+
+    /**
+     * Apply a link state received from another server, passing it on if it's new.
+     *
+     * @param packet The link state
+     * @param from The server it was received from
+     */
+    public void receive(LinkStatePacket packet, Forwarder from) {
+        final LinkStatePacket toSend;
+        Forwarder except = null;
+        synchronized (this) {
+            if (packet.getOrigin().equals(plugin.getServerUUID())) {
+                if (packet.getSequence() < sequence) {
+                    return;
+                }
+                // Left over from before a restart, make sure ours wins
+                sequence = packet.getSequence();
+                states.remove(plugin.getServerUUID());
+                toSend = advertise();
+            } else {
+                final LinkState existing = states.get(packet.getOrigin());
+                if (existing != null && existing.sequence >= packet.getSequence()) {
+                    return;
+                }
+                states.put(packet.getOrigin(), new LinkState(packet.getSequence(), packet.getNeighbors(), packet.getGroups(), packet.getInterests()));
+                publish();
+                toSend = packet;
+                except = from;
+            }
+        }
+        broadcast(toSend, except);
+    }
+
+    /**
+     * Send a link state to every connected server but one.
+     * Called without holding this table's lock, since writing may have to wait for the IO threads, which need it to route events.
+     *
+     * @param packet The link state, or null to send nothing
+     * @param except The server not to send to, or null
+     */
+    private void broadcast(LinkStatePacket packet, Forwarder except) {
+        if (packet == null) {
+            return;
+        }
+        for (Forwarder f : plugin.getForwarders()) {
+            if (f != except) {
+                f.writeRequired(packet);
+            }
+        }
+    }
+
+    /**
+     * Update our own link state if our connections changed since they were last announced.
+     *
+     * @return The new state to announce with {@link #broadcast(LinkStatePacket, Forwarder)}, or null if nothing changed
+     */
+    private LinkStatePacket advertise() {
+        final UUID self = plugin.getServerUUID();
+        final Set<UUID> neighbors = new HashSet<>();
+        for (Forwarder f : plugin.getForwarders()) {
+            final UUID remote = f.getRemoteServerUUID();
+            if (remote != null && f.isActive()) {
+                neighbors.add(remote);
+            }
+        }
+
+        final Set<String> groups = plugin.getNetEventsConfig().getGroups();
+        final Set<String> interests = plugin.getInterestRouter().getLocalInterests();
+
+        final LinkState existing = states.get(self);
+        if (existing != null && existing.neighbors.equals(neighbors) && existing.groups.equals(groups)
+                && existing.interests.equals(interests)) {
+            return null;
+        }
+        final LinkState state = new LinkState(++sequence, neighbors, groups, interests);
+        states.put(self, state);
+        publish();
+        return state.toPacket(self);
+    }
+
+    /**
+     * Replace the snapshot used for routing after the states have changed.
+     */
+    private void publish() {
+        snapshot = new Snapshot(states);
+    }
+
+    /**
+     * Decide whether to send an event to a connected server.
+     *
+     * @param packet The event
+     * @param from The server the event was received from, or null if it was called here
+     * @param to The server to possibly send to
+     * @return Whether {@code to} is on the event's path, or the path can't be worked out
+     */
+    public boolean shouldForward(EventPacket packet, Forwarder from, Forwarder to) {
+        final Snapshot snapshot = this.snapshot;
+        final UUID self = plugin.getServerUUID(), target = to.getRemoteServerUUID();
+        if (target == null) {
+            return true;
+        }
+        if (packet.getTargetServer() != null) {
+            if (packet.getTargetServer().equals(self)) {
+                return false;
+            }
+            final UUID nextHop = getNextHop(snapshot, packet.getTargetServer());
+            if (nextHop == null) {
+                return true;
+            }
+            final LinkState targetState = snapshot.states.get(packet.getTargetServer());
+            // Interests in a superclass of a relayed event of unknown type can't be checked, so it is always sent on
+            return nextHop.equals(target) && (packet.isRelayOnly() || InterestRouter.matches(targetState.interests, packet.getType()));
+        }
+
+        final UUID origin = packet.getOrigin();
+        final Map<UUID, UUID> parents = snapshot.getTree(origin);
+        if (!parents.containsKey(self) || !parents.containsKey(target)) {
+            return true;
+        }
+        if (from != null && !Objects.equals(from.getRemoteServerUUID(), parents.get(self))) {
+            return true; // Not received along the tree, so our view differs from the sender's
+        }
+        if (!self.equals(parents.get(target))) {
+            return false;
+        }
+        if (packet.isRelayOnly()) {
+            // Not known here, so interests can't be checked
+            return packet.getTargetGroup() == null || getWantedPaths(snapshot, origin, null, packet.getTargetGroup()).contains(target);
+        }
+        return getWantedPaths(snapshot, origin, packet.getType(), packet.getTargetGroup()).contains(target);
+    }
+
+    /**
+     * Find the servers in an origin's tree that want an event, or have one below them.
+     *
+     * Results are cached in the snapshot. Threads racing to compute the same result get equal sets, so no locking is needed.
+     *
+     * @param snapshot The states to use
+     * @param origin The root of the tree
+     * @param type The event type, or null to ignore interests
+     * @param group The target group, or null to ignore groups
+     * @return The servers wanting the event, and all of their ancestors
+     */
+    private static Set<UUID> getWantedPaths(Snapshot snapshot, UUID origin, Class<?> type, String group) {
+        ConcurrentMap<String, Set<UUID>> byKey = snapshot.wantedPaths.get(origin);
+        if (byKey == null) {
+            final ConcurrentMap<String, Set<UUID>> created = new ConcurrentHashMap<>();
+            byKey = snapshot.wantedPaths.putIfAbsent(origin, created);
+            if (byKey == null) {
+                byKey = created;
+            }
+        }
+        final String key = (type == null ? "" : type.getName()) + '\0' + (group == null ? "" : group);
+        Set<UUID> ret = byKey.get(key);
+        if (ret == null) {
+            final Map<UUID, UUID> parents = snapshot.getTree(origin);
+            ret = new HashSet<>();
+            for (Map.Entry<UUID, LinkState> entry : snapshot.states.entrySet()) {
+                final LinkState state = entry.getValue();
+                if (!parents.containsKey(entry.getKey()) || (group != null && !state.groups.contains(group))
+                        || (type != null && !InterestRouter.matches(state.interests, type))) {
+                    continue;
+                }
+                UUID server = entry.getKey();
+                while (server != null && ret.add(server)) {
+                    server = parents.get(server);
+                }
+            }
+            ret = Collections.unmodifiableSet(ret);
+            byKey.put(key, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Get the connected server to send an event through to reach another server by the shortest known path.
+     *
+     * @param destination The server to reach
+     * @return The UUID of the connected server to send to, or null if {@code destination} is this server or not known to be reachable
+     */
+    public UUID getNextHop(UUID destination) {
+        return getNextHop(snapshot, destination);
+    }
+
+    private UUID getNextHop(Snapshot snapshot, UUID destination) {
+        final UUID self = plugin.getServerUUID();
+        final Map<UUID, UUID> parents = snapshot.getTree(self);
+        if (destination.equals(self) || !parents.containsKey(destination)) {
+            return null;
+        }
+        UUID hop = destination;
+        while (!self.equals(parents.get(hop))) {
+            hop = parents.get(hop);
+        }
+        return hop;
+    }
+
+    /**
+     * @param group The group name
+     * @return The UUIDs of all known servers in the group, including this one if it is in the group
+     */
+    public Set<UUID> getGroupMembers(String group) {
+        final Set<UUID> ret = new HashSet<>();
+        for (Map.Entry<UUID, LinkState> entry : snapshot.states.entrySet()) {
+            if (entry.getValue().groups.contains(group)) {
+                ret.add(entry.getKey());
+            }
+        }
+        if (plugin.getNetEventsConfig().getGroups().contains(group)) {
+            ret.add(plugin.getServerUUID());
+        }
+        return ret;
+    }
+
+    /**
+     * @return The UUIDs of all servers reachable from this one, including itself
+     */
+    public Set<UUID> getReachableServers() {
+        return new HashSet<>(snapshot.getTree(plugin.getServerUUID()).keySet());
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import org.bukkit.Server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a remote call made with {@link RpcManager}.
+ *
+ * Calls are completed on the server's main thread, so blocking on {@link #get()} there would never return,
+ * and throws an {@link IllegalStateException} instead. Use {@link #addCallback(Callback)} from the main thread.
+ *
+ * @param <T> The response type
+ */
+public class RpcFuture<T> implements Future<T> {
+    /**
+     * Receives the result of a call.
+     *
+     * @param <T> The response type
+     */
+    public interface Callback<T> {
+        void onSuccess(T response);
+
+        /**
+         * @param cause An {@link RpcException} if the call failed remotely or could not be delivered,
+         *              a {@link TimeoutException} if no response arrived in time,
+         *              or a {@link CancellationException} if the call was cancelled
+         */
+        void onFailure(Throwable cause);
+    }
+
+    private final Server server;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private List<Callback<? super T>> callbacks = new ArrayList<>();
+    private T result;
+    private Throwable failure;
+
+    RpcFuture(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Add a callback to be run when the call completes, on the thread that completes it.
+     * If the call has already completed, the callback is run immediately.
+     *
+     * @param callback The callback
+     */
+    public void addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        notify(callback);
+    }
+
+    boolean complete(T result) {
+        return finish(result, null);
+    }
+
+    boolean fail(Throwable cause) {
+        return finish(null, cause);
+    }
+
+    private boolean finish(T result, Throwable failure) {
+        final List<Callback<? super T>> callbacks;
+        synchronized (this) {
+            if (this.callbacks == null) {
+                return false;
+            }
+            this.result = result;
+            this.failure = failure;
+            callbacks = this.callbacks;
+            this.callbacks = null;
+        }
+        done.countDown();
+        for (Callback<? super T> callback : callbacks) {
+            notify(callback);
+        }
+        return true;
+    }
+
+    private void notify(Callback<? super T> callback) {
+        if (failure != null) {
+            callback.onFailure(failure);
+        } else {
+            callback.onSuccess(result);
+        }
+    }
+
+    /**
+     * Cancel the call. A response arriving later is ignored.
+     *
+     * @param mayInterruptIfRunning Ignored, the remote handler is not interrupted
+     * @return Whether the call was cancelled
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return fail(new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return failure instanceof CancellationException;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Wait for the call to complete.
+     *
+     * @return The response
+     * @throws IllegalStateException if called from the main thread, which the call is completed on
+     */
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        if (server.isPrimaryThread()) {
+            throw new IllegalStateException("Waiting for a call on the main thread would never return, use addCallback instead");
+        }
+        done.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        if (failure instanceof CancellationException) {
+            throw (CancellationException) failure;
+        } else if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+}
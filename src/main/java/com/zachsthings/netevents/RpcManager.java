@@ -0,0 +1,291 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import com.zachsthings.netevents.packet.RpcPacket;
+import org.bukkit.event.Event;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Calls on other servers that return a response.
+ *
+ * Requests and responses are events, encoded like events passed with {@link NetEventsPlugin#callEvent(Event)}, but sent to one server only,
+ * along the shortest path in the {@link RoutingTable}. Any number of calls may be in flight at once, matched to their responses by id.
+ * Like events, call packets are relayed at most {@link NetEventsConfig#getEventTtl()} times.
+ * Handlers are run and calls completed on the main thread.
+ */
+public class RpcManager {
+    /**
+     * Handles requests of one type.
+     *
+     * @param <Q> The request type
+     * @param <R> The response type
+     */
+    public interface Handler<Q extends Event, R extends Event> {
+        /**
+         * Handle a request. Called on the main thread.
+         *
+         * @param source The calling server
+         * @param request The request
+         * @return The response, may be null
+         * @throws Exception if the request failed, to be reported to the caller as an {@link RpcException}
+         */
+        R handle(UUID source, Q request) throws Exception;
+    }
+
+    private static class PendingCall {
+        private final RpcFuture<Event> future;
+        private final Class<? extends Event> responseType;
+        private final long deadline;
+
+        private PendingCall(RpcFuture<Event> future, Class<? extends Event> responseType, long deadline) {
+            this.future = future;
+            this.responseType = responseType;
+            this.deadline = deadline;
+        }
+    }
+
+    private final NetEventsPlugin plugin;
+    private final ConcurrentMap<Class<? extends Event>, Handler<?, ?>> handlers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, PendingCall> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+
+    RpcManager(NetEventsPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Register the handler for a request type, replacing any existing one.
+     * Requests of subclasses of the type are also handled, unless they have their own handler.
+     *
+     * @param type The request type
+     * @param handler The handler
+     * @param <Q> The request type
+     */
+    public <Q extends Event> void registerHandler(Class<Q> type, Handler<? super Q, ?> handler) {
+        handlers.put(type, handler);
+    }
+
+    /**
+     * Remove the handler for a request type.
+     *
+     * @param type The request type
+     */
+    public void unregisterHandler(Class<? extends Event> type) {
+        handlers.remove(type);
+    }
+
+    /**
+     * Call a server. The request's type must be known to the server, which must have a handler registered for it.
+     * Calling this server's own UUID handles the request locally, on the next tick.
+     *
+     * @param server The UUID of the server to call
+     * @param request The request
+     * @param responseType The expected response type
+     * @param timeout How long to wait for a response before failing with a {@link TimeoutException}
+     * @param unit The unit of {@code timeout}
+     * @param <R> The response type
+     * @return The call's result
+     */
+    @SuppressWarnings("unchecked")
+    public <R extends Event> RpcFuture<R> call(UUID server, Event request, Class<R> responseType, long timeout, TimeUnit unit) {
+        final RpcFuture<Event> future = new RpcFuture<>(plugin.getServer());
+        final long id = nextCorrelationId.incrementAndGet();
+        final RpcPacket packet = RpcPacket.request(id, plugin.getServerUUID(), server, request, getTtl(), plugin.getCodecRegistry());
+        pending.put(id, new PendingCall(future, responseType, System.nanoTime() + unit.toNanos(timeout)));
+
+        if (server.equals(plugin.getServerUUID())) {
+            plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    receive(packet, null);
+                }
+            });
+        } else if (!send(packet)) {
+            failCall(id, new RpcException("No route to server " + server));
+        }
+        return (RpcFuture<R>) future;
+    }
+
+    /**
+     * Handle a received call packet, relaying it if it is for another server. Must be called from the main thread.
+     *
+     * @param packet The packet
+     * @param from The forwarder the packet was received from, or null if it was sent by this server
+     */
+    public void receive(RpcPacket packet, Forwarder from) {
+        if (!packet.getDestination().equals(plugin.getServerUUID())) {
+            if (packet.getTtl() <= 0) {
+                plugin.debug("Not relaying " + packet + ", its time to live has run out");
+                if (packet.getKind() == RpcPacket.Kind.REQUEST) {
+                    reply(RpcPacket.error(packet, plugin.getServerUUID(),
+                            "Time to live ran out before reaching server " + packet.getDestination(), getTtl()));
+                }
+            } else if (!send(packet)) {
+                plugin.debug("No route to " + packet.getDestination() + " for " + packet);
+                if (packet.getKind() == RpcPacket.Kind.REQUEST) {
+                    reply(RpcPacket.error(packet, plugin.getServerUUID(), "No route to server " + packet.getDestination(), getTtl()));
+                }
+            }
+            return;
+        }
+
+        switch (packet.getKind()) {
+            case REQUEST:
+                reply(handleRequest(packet));
+                break;
+            case RESPONSE:
+                completeCall(packet);
+                break;
+            case ERROR:
+                failCall(packet.getCorrelationId(), new RpcException("Call failed on " + packet.getSource() + ": " + packet.getMessage()));
+                break;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private RpcPacket handleRequest(RpcPacket packet) {
+        final UUID self = plugin.getServerUUID();
+        final Event request;
+        try {
+            request = packet.getEvent();
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "Unable to decode " + packet, e);
+            return RpcPacket.error(packet, self, "Unable to decode request: " + e, getTtl());
+        }
+        if (request == null) {
+            return RpcPacket.error(packet, self, "Unknown request type " + packet.getTypeName(), getTtl());
+        }
+
+        Handler<Event, ?> handler = null;
+        for (Class<?> type = request.getClass(); handler == null && type != null && Event.class.isAssignableFrom(type); type = type.getSuperclass()) {
+            handler = (Handler<Event, ?>) handlers.get(type);
+        }
+        if (handler == null) {
+            return RpcPacket.error(packet, self, "No handler for " + packet.getTypeName(), getTtl());
+        }
+
+        try {
+            return RpcPacket.response(packet, self, handler.handle(packet.getSource(), request), getTtl(), plugin.getCodecRegistry());
+        } catch (Exception e) {
+            plugin.debug("Handler for " + packet + " failed: " + e);
+            return RpcPacket.error(packet, self, e.toString(), getTtl());
+        }
+    }
+
+    private void reply(RpcPacket reply) {
+        if (reply.getDestination().equals(plugin.getServerUUID())) {
+            receive(reply, null);
+        } else if (!send(reply)) {
+            plugin.debug("No route to " + reply.getDestination() + " for " + reply);
+        }
+    }
+
+    private void completeCall(RpcPacket packet) {
+        final PendingCall call = pending.remove(packet.getCorrelationId());
+        if (call == null) {
+            plugin.debug("Received response " + packet + " for a call that is no longer pending");
+            return;
+        }
+        final Event response;
+        try {
+            response = packet.getEvent();
+        } catch (IOException e) {
+            call.future.fail(new RpcException("Unable to decode response: " + e));
+            return;
+        }
+        if (response == null && packet.getTypeName() != null) {
+            call.future.fail(new RpcException("Unknown response type " + packet.getTypeName()));
+        } else if (response != null && !call.responseType.isInstance(response)) {
+            call.future.fail(new RpcException("Response " + packet.getTypeName() + " is not a " + call.responseType.getName()));
+        } else {
+            call.future.complete(response);
+        }
+    }
+
+    private void failCall(long id, Throwable cause) {
+        final PendingCall call = pending.remove(id);
+        if (call != null) {
+            call.future.fail(cause);
+        }
+    }
+
+    private int getTtl() {
+        return plugin.getNetEventsConfig().getEventTtl();
+    }
+
+    /**
+     * Send a packet towards its destination. Errors are queued even if the send queue is full, since the caller would otherwise wait for its timeout.
+     *
+     * @return Whether the packet was queued on the connection to the next hop
+     */
+    private boolean send(RpcPacket packet) {
+        final UUID hop = plugin.getRoutingTable().getNextHop(packet.getDestination());
+        if (hop == null) {
+            return false;
+        }
+        for (Forwarder f : plugin.getForwarders()) {
+            if (hop.equals(f.getRemoteServerUUID())) {
+                return (packet.getKind() == RpcPacket.Kind.ERROR ? f.writeRequired(packet) : f.write(packet)).isQueued();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fail calls whose timeout has passed, and forget cancelled calls. Called every tick from the main thread.
+     */
+    void expireCalls() {
+        final long now = System.nanoTime();
+        for (Iterator<Map.Entry<Long, PendingCall>> it = pending.entrySet().iterator(); it.hasNext();) {
+            final PendingCall call = it.next().getValue();
+            if (call.future.isDone()) {
+                it.remove();
+            } else if (now - call.deadline >= 0) {
+                it.remove();
+                call.future.fail(new TimeoutException("No response within the call's timeout"));
+            }
+        }
+    }
+
+    /**
+     * Fail all pending calls, when NetEvents is disabled.
+     */
+    void failAll() {
+        for (Iterator<PendingCall> it = pending.values().iterator(); it.hasNext();) {
+            final PendingCall call = it.next();
+            it.remove();
+            call.future.fail(new RpcException("NetEvents was disabled"));
+        }
+    }
+
+    /**
+     * @return The number of calls from this server waiting for a response
+     */
+    public int getPendingCalls() {
+        return pending.size();
+    }
+}
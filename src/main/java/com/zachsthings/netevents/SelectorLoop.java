@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread owning a single {@link Selector}, handling readiness for every channel registered with it.
+ *
+ * Channels must only be registered from tasks run on this loop, see {@link #execute(Runnable)}.
+ */
+class SelectorLoop extends Thread {
+    private static final long DEREGISTER_TIMEOUT_SECONDS = 5;
+
+    /**
+     * Receives readiness notifications for a registered channel. Set as the {@link SelectionKey}'s attachment.
+     */
+    interface Handler {
+        /**
+         * Called on the loop thread when the key has ready operations.
+         *
+         * @param key The ready key
+         * @throws IOException if an error occurs while handling IO. The handler will be passed the exception to {@link #failed(Exception)}
+         */
+        public void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the loop thread when {@link #ready(SelectionKey)} throws.
+         *
+         * @param e The thrown exception
+         */
+        public void failed(Exception e);
+    }
+
+    private final Logger logger;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    public SelectorLoop(String name, Logger logger) throws IOException {
+        super(name);
+        setDaemon(true);
+        this.logger = logger;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Return the selector owned by this loop. Only use this from tasks running on the loop.
+     *
+     * @return The selector
+     */
+    public Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Run a task on this loop's thread as soon as possible.
+     *
+     * @param task The task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Cancel {@code chan}'s key with this loop. A closed channel's socket is only released once its key has been deregistered by a select,
+     * so the loop is woken up to do so instead of waiting for its next IO.
+     *
+     * @param chan The channel, usually already closed
+     * @param wait Whether to wait until the key has been deregistered, for example so the channel's address can be bound again.
+     *             Has no effect when called on the loop, which deregisters the key as soon as it's done with the current keys
+     */
+    public void deregister(SelectableChannel chan, boolean wait) {
+        final SelectionKey key = chan.keyFor(selector);
+        if (key == null) {
+            return;
+        }
+        key.cancel();
+        if (inLoop() || !isAlive()) {
+            return;
+        }
+        final CountDownLatch deregistered = new CountDownLatch(1);
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    selector.selectNow();
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Error occurred while deregistering " + key.channel() + " from " + getName(), e);
+                } finally {
+                    deregistered.countDown();
+                }
+            }
+        });
+        if (wait) {
+            try {
+                if (!deregistered.await(DEREGISTER_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    logger.warning("Timed out waiting for " + getName() + " to deregister " + chan);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                runTasks();
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    final Handler handler = (Handler) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        handler.ready(key);
+                    } catch (Exception e) {
+                        handler.failed(e);
+                    }
+                }
+            }
+        } catch (ClosedSelectorException ignore) {
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Error occurred in selector loop " + getName(), e);
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Error occurred while closing selector for " + getName(), e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Error occurred while running task on " + getName(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import com.zachsthings.netevents.packet.EventPacket;
+import com.zachsthings.netevents.packet.Packet;
+import com.zachsthings.netevents.packet.ReferenceCounted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of encoded packets waiting to be written to a connection, bounded by both packet count and bytes.
+ *
+ * What happens when the queue is full is decided by its {@link NetEventsConfig.OverflowPolicy}.
+ * Required packets, such as those closing the connection, are always accepted and never dropped.
+ */
+class SendQueue {
+    /**
+     * A queued packet and its encoded payload. Holds a reference to the packet until {@link #release()}d.
+     */
+    static class Entry {
+        // Replaced when a newer event with the same coalescing key is queued
+        Packet packet;
+        ByteBuffer payload;
+        final boolean toClose;
+        final boolean required;
+        final String coalescingKey;
+
+        private Entry(Packet packet, ByteBuffer payload, boolean toClose, boolean required) {
+            this.packet = packet;
+            this.payload = payload;
+            this.toClose = toClose;
+            this.required = required;
+            this.coalescingKey = packet instanceof EventPacket ? ((EventPacket) packet).getCoalescingKey() : null;
+        }
+
+        public static Entry retained(Packet packet, boolean toClose) throws IOException {
+            return retained(packet, toClose, toClose);
+        }
+
+        /**
+         * Create an entry for a packet, retaining it if needed.
+         *
+         * @param packet The packet to queue
+         * @param toClose Whether the connection should be closed once the packet is written
+         * @param required Whether the packet must be sent even if the queue is full
+         * @return The entry
+         * @throws IOException if the packet can't be encoded
+         */
+        public static Entry retained(Packet packet, boolean toClose, boolean required) throws IOException {
+            final ByteBuffer payload = packet.write();
+            if (packet instanceof ReferenceCounted) {
+                ((ReferenceCounted) packet).retain();
+            }
+            return new Entry(packet, payload, toClose, required);
+        }
+
+        public int size() {
+            return Connection.HEADER_SIZE + payload.remaining();
+        }
+
+        public void release() {
+            if (packet instanceof ReferenceCounted) {
+                ((ReferenceCounted) packet).release();
+            }
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition(), notFull = lock.newCondition();
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private final Map<String, Entry> keyed = new HashMap<>(); // Queued entries by coalescing key
+    private final int maxPackets;
+    private final long maxBytes;
+    private final NetEventsConfig.OverflowPolicy policy;
+    private final AtomicLong droppedCounter;
+    private long bytes;
+    private boolean closed;
+
+    /**
+     * Create a new queue.
+     *
+     * @param maxPackets Maximum number of queued packets
+     * @param maxBytes Maximum number of queued bytes, including frame headers
+     * @param policy What to do when full
+     * @param droppedCounter Incremented for every packet dropped because the queue was full
+     */
+    public SendQueue(int maxPackets, long maxBytes, NetEventsConfig.OverflowPolicy policy, AtomicLong droppedCounter) {
+        this.maxPackets = maxPackets;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.droppedCounter = droppedCounter;
+    }
+
+    /**
+     * Queue an entry, applying the overflow policy if the queue is full.
+     * An event with a coalescing key replaces the queued event with the same key instead, taking its place in the queue.
+     * If the entry is not queued, it is released.
+     *
+     * @param entry The entry to queue
+     * @param mayBlock Whether to wait for room with {@link NetEventsConfig.OverflowPolicy#BLOCK}.
+     *                 If false, that policy drops the entry like {@link NetEventsConfig.OverflowPolicy#DROP_NEWEST}
+     * @return The outcome. {@link WriteResult#DISCONNECTED} means the caller should close the connection.
+     * @throws InterruptedException if interrupted while waiting for room with {@link NetEventsConfig.OverflowPolicy#BLOCK}
+     */
+    public WriteResult offer(Entry entry, boolean mayBlock) throws InterruptedException {
+        lock.lock();
+        try {
+            if (entry.coalescingKey != null && !closed) {
+                final Entry queued = keyed.get(entry.coalescingKey);
+                if (queued != null) {
+                    bytes += entry.size() - queued.size();
+                    queued.release();
+                    queued.packet = entry.packet;
+                    queued.payload = entry.payload;
+                    return WriteResult.QUEUED_REPLACED;
+                }
+            }
+            WriteResult result = WriteResult.QUEUED;
+            if (!entry.required) {
+                while (!closed && isFull(entry)) {
+                    switch (policy) {
+                        case BLOCK:
+                            if (mayBlock) {
+                                notFull.await();
+                                break;
+                            }
+                            // Fall through, IO threads must not wait
+                        case DROP_NEWEST:
+                            entry.release();
+                            droppedCounter.incrementAndGet();
+                            return WriteResult.DROPPED;
+                        case DROP_OLDEST:
+                            final Entry oldest = removeOldestDroppable();
+                            if (oldest == null) {
+                                entry.release();
+                                droppedCounter.incrementAndGet();
+                                return WriteResult.DROPPED;
+                            }
+                            oldest.release();
+                            droppedCounter.incrementAndGet();
+                            result = WriteResult.QUEUED_DROPPED_OLDER;
+                            break;
+                        case DISCONNECT:
+                            entry.release();
+                            droppedCounter.incrementAndGet();
+                            return WriteResult.DISCONNECTED;
+                        default:
+                            throw new IllegalStateException("Unknown overflow policy " + policy);
+                    }
+                }
+            }
+            if (closed) {
+                entry.release();
+                return WriteResult.NOT_CONNECTED;
+            }
+            entries.addLast(entry);
+            if (entry.coalescingKey != null) {
+                keyed.put(entry.coalescingKey, entry);
+            }
+            bytes += entry.size();
+            notEmpty.signal();
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFull(Entry entry) {
+        // An empty queue always accepts one packet, however large
+        return !entries.isEmpty() && (entries.size() >= maxPackets || bytes + entry.size() > maxBytes);
+    }
+
+    private Entry removeFirst() {
+        final Entry ret = entries.pollFirst();
+        if (ret != null) {
+            removed(ret);
+            notFull.signalAll();
+        }
+        return ret;
+    }
+
+    private Entry removeOldestDroppable() {
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+            final Entry entry = it.next();
+            if (!entry.required) {
+                it.remove();
+                removed(entry);
+                notFull.signalAll();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void removed(Entry entry) {
+        bytes -= entry.size();
+        if (entry.coalescingKey != null) {
+            keyed.remove(entry.coalescingKey);
+        }
+    }
+
+    /**
+     * @return The first queued entry, or null if the queue is empty
+     */
+    public Entry poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for an entry to be queued.
+     *
+     * @return The first queued entry
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Entry take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (entries.isEmpty()) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop accepting entries, waking up any blocked writers, and release everything still queued.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            Entry entry;
+            while ((entry = removeFirst()) != null) {
+                entry.release();
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -55,14 +55,24 @@ class StatusCommand implements CommandExecutor {
         if (args.length == 0) {
             sender.sendMessage(text("NetEvents version ", hl(plugin.getDescription().getVersion())));
             sender.sendMessage(text("Remote listener bound to ", hl(plugin.getBoundAddress().toString())));
+            sender.sendMessage(text("Server UUID ", hl(plugin.getServerUUID().toString())));
             sender.sendMessage(text("Connected servers:"));
             for (Forwarder f : plugin.getForwarders()) {
                 if (f.isActive()) {
-                    sender.sendMessage(text("- ", hl(f.getRemoteAddress().toString())));
+                    final long dropped = f.getDroppedPackets();
+                    sender.sendMessage(text("- ", hl(f.getRemoteAddress().toString()), dropped > 0 ? " (" + hl(String.valueOf(dropped)) + " dropped)" : ""));
                 } else if (f.getRemoteAddress() != null) {
                     sender.sendMessage(text("- ", ChatColor.RED + f.getRemoteAddress().toString()));
                 }
             }
+            final PacketHandlerQueue queue = plugin.getHandlerQueue();
+            sender.sendMessage(text("Handled ", hl(String.valueOf(queue.getLastProcessed())), " packets last tick in ",
+                    hl(String.format("%.2f", queue.getLastTime() / 1e6)), " of ", hl(String.format("%.2f", queue.getBudget() / 1e6)),
+                    " ms, ", hl(String.valueOf(queue.getBacklog())), " waiting"));
+            final long expired = plugin.getExpiredEvents();
+            if (expired > 0) {
+                sender.sendMessage(text("Events not forwarded after their time to live ran out: ", hl(String.valueOf(expired))));
+            }
             sender.sendMessage(error("Usage: /" + label + " <reload|tryconnect|ping|debug>"));
         } else {
             final String commandLabel = args[0];
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+/**
+ * Outcome of queueing a packet to be sent to a remote server.
+ *
+ * @see Forwarder#write(com.zachsthings.netevents.packet.Packet)
+ */
+public enum WriteResult {
+    /**
+     * The packet was queued to be sent
+     */
+    QUEUED,
+    /**
+     * The packet was queued, but older queued packets were dropped to make room for it
+     */
+    QUEUED_DROPPED_OLDER,
+    /**
+     * The packet took the place of a queued event with the same {@link KeyedNetEvent state key}, which won't be sent
+     */
+    QUEUED_REPLACED,
+    /**
+     * The send queue was full, so the packet was dropped
+     */
+    DROPPED,
+    /**
+     * The send queue was full, so the connection was closed
+     */
+    DISCONNECTED,
+    /**
+     * There is no active connection to send the packet on
+     */
+    NOT_CONNECTED,
+    /**
+     * The packet could not be encoded
+     */
+    FAILED;
+
+    /**
+     * @return Whether the packet will be sent
+     */
+    public boolean isQueued() {
+        return this == QUEUED || this == QUEUED_DROPPED_OLDER || this == QUEUED_REPLACED;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Helpers for reading and writing values not directly supported by {@link ByteBuffer}. Useful when writing an {@link EventCodec}.
+ */
+public final class Buffers {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Buffers() {
+    }
+
+    /**
+     * Write a non-negative int in as few bytes as possible, 7 bits per byte.
+     *
+     * @param buf The buffer to write to
+     * @param value The value to write
+     */
+    public static void putVarInt(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * Read an int written by {@link #putVarInt(ByteBuffer, int)}.
+     *
+     * @param buf The buffer to read from
+     * @return The read value
+     * @throws IOException if the value is too long
+     */
+    public static int getVarInt(ByteBuffer buf) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarInt too long");
+    }
+
+    /**
+     * @param value A non-negative int
+     * @return The number of bytes {@link #putVarInt(ByteBuffer, int)} writes for the value
+     */
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write a UTF-8 string, prefixed with its length in bytes. A null string is written as length -1.
+     *
+     * @param buf The buffer to write to
+     * @param str The string to write, may be null
+     */
+    public static void putString(ByteBuffer buf, String str) {
+        if (str == null) {
+            buf.putInt(-1);
+            return;
+        }
+        final byte[] bytes = str.getBytes(UTF_8);
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+    }
+
+    /**
+     * Read a string written by {@link #putString(ByteBuffer, String)}.
+     *
+     * @param buf The buffer to read from
+     * @return The read string, may be null
+     * @throws IOException if the length is invalid
+     */
+    public static String getString(ByteBuffer buf) throws IOException {
+        final int len = buf.getInt();
+        if (len == -1) {
+            return null;
+        }
+        if (len < 0 || len > buf.remaining()) {
+            throw new IOException("Invalid string length " + len);
+        }
+        final byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Write a byte array, prefixed with its length. A null array is written as length -1.
+     *
+     * @param buf The buffer to write to
+     * @param bytes The bytes to write, may be null
+     */
+    public static void putBytes(ByteBuffer buf, byte[] bytes) {
+        if (bytes == null) {
+            buf.putInt(-1);
+            return;
+        }
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+    }
+
+    /**
+     * Read a byte array written by {@link #putBytes(ByteBuffer, byte[])}.
+     *
+     * @param buf The buffer to read from
+     * @return The read bytes, may be null
+     * @throws IOException if the length is invalid
+     */
+    public static byte[] getBytes(ByteBuffer buf) throws IOException {
+        final int len = buf.getInt();
+        if (len == -1) {
+            return null;
+        }
+        if (len < 0 || len > buf.remaining()) {
+            throw new IOException("Invalid array length " + len);
+        }
+        final byte[] bytes = new byte[len];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write a UUID, preceded by a byte telling whether it is null.
+     *
+     * @param buf The buffer to write to
+     * @param uid The UUID to write, may be null
+     */
+    public static void putUUID(ByteBuffer buf, UUID uid) {
+        if (uid == null) {
+            buf.put((byte) 0);
+            return;
+        }
+        buf.put((byte) 1);
+        buf.putLong(uid.getMostSignificantBits());
+        buf.putLong(uid.getLeastSignificantBits());
+    }
+
+    /**
+     * Read a UUID written by {@link #putUUID(ByteBuffer, UUID)}.
+     *
+     * @param buf The buffer to read from
+     * @return The read UUID, may be null
+     */
+    public static UUID getUUID(ByteBuffer buf) {
+        if (buf.get() == 0) {
+            return null;
+        }
+        final long msb = buf.getLong(), lsb = buf.getLong();
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * Write an enum constant's ordinal. A null constant is written as -1.
+     *
+     * @param buf The buffer to write to
+     * @param value The constant to write, may be null
+     */
+    public static void putOrdinal(ByteBuffer buf, Enum<?> value) {
+        buf.putInt(value == null ? -1 : value.ordinal());
+    }
+
+    /**
+     * Read an enum constant written by {@link #putOrdinal(ByteBuffer, Enum)}.
+     *
+     * @param buf The buffer to read from
+     * @param values The enum's constants, as returned by its {@code values()} method
+     * @param <E> The enum type
+     * @return The read constant, may be null
+     * @throws IOException if the ordinal is out of range
+     */
+    public static <E extends Enum<E>> E getEnum(ByteBuffer buf, E[] values) throws IOException {
+        final int ordinal = buf.getInt();
+        if (ordinal == -1) {
+            return null;
+        }
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IOException("Invalid enum ordinal " + ordinal);
+        }
+        return values[ordinal];
+    }
+}
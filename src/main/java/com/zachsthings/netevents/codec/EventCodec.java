@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.codec;
+
+import org.bukkit.event.Event;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes events of one type for sending over the network, replacing Java serialization for that type.
+ *
+ * Codecs are registered with {@link EventCodecRegistry} and must be registered on both the sending and receiving servers.
+ * Codecs may be called from several threads at once, so they should not keep state.
+ *
+ * @param <T> The type of event handled
+ */
+public interface EventCodec<T extends Event> {
+    /**
+     * Write an event into the buffer provided by the transport.
+     *
+     * If the buffer runs out of room, a {@link java.nio.BufferOverflowException} may be thrown,
+     * in which case this method will be called again with a larger buffer.
+     *
+     * @param event The event to write
+     * @param buf The buffer to write to
+     * @throws IOException if the event can't be encoded
+     */
+    public void encode(T event, ByteBuffer buf) throws IOException;
+
+    /**
+     * Read an event written by {@link #encode(Event, ByteBuffer)}.
+     *
+     * @param buf Buffer containing the encoded event as its remaining bytes
+     * @return The decoded event
+     * @throws IOException if the data is invalid
+     */
+    public T decode(ByteBuffer buf) throws IOException;
+}
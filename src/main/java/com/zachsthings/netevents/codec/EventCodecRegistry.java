@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.codec;
+
+import org.bukkit.event.Event;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the {@link EventCodec}s used to send events. Events without a registered codec are sent using Java serialization.
+ *
+ * Codecs generated for classes marked with {@link NetEvent} are registered the first time they are needed.
+ *
+ * The registry also gives each event class sent or received by this server a compact id, which is sent instead of the class name.
+ */
+public class EventCodecRegistry {
+    // Cached for event classes with no codec, so they are only checked for a generated codec once
+    private static final EventCodec<?> NO_CODEC = new EventCodec<Event>() {
+        @Override
+        public void encode(Event event, ByteBuffer buf) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Event decode(ByteBuffer buf) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private final ConcurrentMap<Class<?>, EventCodec<?>> byClass = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, EventCodec<?>> byName = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> typeIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTypeId = new AtomicInteger();
+    private final ConcurrentMap<String, Class<? extends Event>> eventClasses = new ConcurrentHashMap<>();
+
+    /**
+     * Register a codec for an event type. Replaces any codec previously registered for the type.
+     * Subclasses of {@code type} are not affected.
+     *
+     * @param type The event class
+     * @param codec The codec to use for the event class
+     * @param <T> The event type
+     */
+    public <T extends Event> void register(Class<T> type, EventCodec<T> codec) {
+        byClass.put(type, codec);
+        byName.put(type.getName(), codec);
+    }
+
+    /**
+     * Remove the codec for an event type, so the type is sent using Java serialization or its generated codec.
+     *
+     * @param type The event class
+     */
+    public void unregister(Class<? extends Event> type) {
+        byClass.remove(type);
+        byName.remove(type.getName());
+    }
+
+    /**
+     * Get the codec registered for an event type.
+     *
+     * @param type The event class
+     * @param <T> The event type
+     * @return The codec, or null if events of this type are sent with Java serialization
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Event> EventCodec<T> getCodec(Class<T> type) {
+        EventCodec<?> codec = byClass.get(type);
+        if (codec == null) {
+            codec = loadGenerated(type);
+            final EventCodec<?> existing = byClass.putIfAbsent(type, codec == null ? NO_CODEC : codec);
+            if (existing != null) {
+                codec = existing;
+            } else if (codec != null) {
+                byName.putIfAbsent(type.getName(), codec);
+            }
+        }
+        return codec == NO_CODEC ? null : (EventCodec<T>) codec;
+    }
+
+    /**
+     * Get the codec registered for an event type.
+     *
+     * @param className The event's class name
+     * @return The codec, or null if none is registered for the class
+     */
+    public EventCodec<?> getCodec(String className) {
+        final EventCodec<?> codec = byName.get(className);
+        if (codec != null) {
+            return codec;
+        }
+
+        final Class<? extends Event> type = findEventClass(className);
+        return type == null ? null : getCodec(type);
+    }
+
+    /**
+     * Get the id this server uses for an event class on the wire, assigning one if the class has none yet.
+     * Ids are only meaningful to this server, and are announced to each connection before they are first used.
+     *
+     * @param className The event's class name
+     * @return The type id
+     */
+    public int getTypeId(String className) {
+        Integer id = typeIds.get(className);
+        if (id == null) {
+            final Integer newId = nextTypeId.getAndIncrement();
+            id = typeIds.putIfAbsent(className, newId);
+            if (id == null) {
+                id = newId;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Find an event class by name.
+     *
+     * @param className The class name
+     * @return The class, or null if it does not exist on this server or is not an event
+     */
+    public Class<? extends Event> findEventClass(String className) {
+        final Class<? extends Event> cached = eventClasses.get(className);
+        if (cached != null) {
+            return cached;
+        }
+
+        final Class<?> type;
+        try {
+            type = Class.forName(className, false, getClass().getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        if (!Event.class.isAssignableFrom(type)) {
+            return null;
+        }
+        final Class<? extends Event> eventType = type.asSubclass(Event.class);
+        eventClasses.put(className, eventType);
+        return eventType;
+    }
+
+    private static EventCodec<?> loadGenerated(Class<?> type) {
+        if (!type.isAnnotationPresent(NetEvent.class)) {
+            return null;
+        }
+        try {
+            return (EventCodec<?>) Class.forName(type.getName() + NetEvent.CODEC_SUFFIX, true, type.getClassLoader()).newInstance();
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | ClassCastException e) {
+            return null; // Processor didn't run, fall back to serialization
+        }
+    }
+}
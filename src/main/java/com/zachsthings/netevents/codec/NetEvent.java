@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.codec;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an event class to have an {@link EventCodec} generated for it at compile time.
+ * The generated codec is used automatically by {@link EventCodecRegistry} unless another codec is registered for the class.
+ *
+ * Every non-static, non-transient field of the class, and of any superclasses also marked with this annotation, is sent.
+ * These fields must not be private or final, and the class must have a no-argument constructor that is not private.
+ * Supported field types are primitives and their wrappers, {@link String}, {@link java.util.UUID}, enums, and {@code byte[]}.
+ *
+ * The annotation processor is registered in the NetEvents jar, so it runs when NetEvents is on the compile classpath.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface NetEvent {
+    /**
+     * Appended to the event's binary class name to get the name of its generated codec.
+     */
+    String CODEC_SUFFIX = "$$NetEventCodec";
+}
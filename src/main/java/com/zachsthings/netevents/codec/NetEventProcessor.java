@@ -0,0 +1,293 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.codec;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * Generates an {@link EventCodec} for each class marked with {@link NetEvent}.
+ *
+ * The generated codec reads and writes the event's fields directly, so no reflection or boxing happens when sending events.
+ */
+@SupportedAnnotationTypes("com.zachsthings.netevents.codec.NetEvent")
+public class NetEventProcessor extends AbstractProcessor {
+    private static final String EVENT_CLASS = "org.bukkit.event.Event";
+    private static final Map<String, String> BOXED_PUTS = new HashMap<>();
+
+    static {
+        BOXED_PUTS.put("java.lang.Boolean", "boolean");
+        BOXED_PUTS.put("java.lang.Byte", "byte");
+        BOXED_PUTS.put("java.lang.Short", "short");
+        BOXED_PUTS.put("java.lang.Character", "char");
+        BOXED_PUTS.put("java.lang.Integer", "int");
+        BOXED_PUTS.put("java.lang.Long", "long");
+        BOXED_PUTS.put("java.lang.Float", "float");
+        BOXED_PUTS.put("java.lang.Double", "double");
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(NetEvent.class))) {
+            try {
+                generate(type);
+            } catch (IOException e) {
+                error(type, "Unable to write codec: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        if (!check(type)) {
+            return;
+        }
+        final List<VariableElement> fields = new ArrayList<>();
+        if (!collectFields(type, type, fields)) {
+            return;
+        }
+
+        final String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        final String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        final String codecName = binaryName.substring(pkg.isEmpty() ? 0 : pkg.length() + 1) + NetEvent.CODEC_SUFFIX;
+        final String typeName = type.getQualifiedName().toString();
+
+        final PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(pkg.isEmpty() ? codecName : pkg + "." + codecName, type).openWriter());
+        try {
+            if (!pkg.isEmpty()) {
+                out.println("package " + pkg + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Codec for {@link " + typeName + "}, generated by " + getClass().getName() + ". Do not edit.");
+            out.println(" */");
+            out.println("public final class " + codecName + " implements com.zachsthings.netevents.codec.EventCodec<" + typeName + "> {");
+            for (VariableElement field : fields) {
+                if (isEnum(field.asType())) {
+                    out.println("    private static final " + field.asType() + "[] " + field.getSimpleName() + "_VALUES = " + field.asType() + ".values();");
+                }
+            }
+            out.println();
+            out.println("    @Override");
+            out.println("    public void encode(" + typeName + " event, java.nio.ByteBuffer buf) {");
+            for (VariableElement field : fields) {
+                out.println("        " + encoder(field, "event." + field.getSimpleName()));
+            }
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public " + typeName + " decode(java.nio.ByteBuffer buf) throws java.io.IOException {");
+            out.println("        final " + typeName + " event = new " + typeName + "();");
+            for (VariableElement field : fields) {
+                out.println("        event." + field.getSimpleName() + " = " + decoder(field) + ";");
+            }
+            out.println("        return event;");
+            out.println("    }");
+            out.println("}");
+        } finally {
+            out.close();
+        }
+    }
+
+    private boolean check(TypeElement type) {
+        final TypeElement event = processingEnv.getElementUtils().getTypeElement(EVENT_CLASS);
+        if (event != null && !processingEnv.getTypeUtils().isAssignable(type.asType(), event.asType())) {
+            error(type, "@NetEvent classes must extend " + EVENT_CLASS);
+            return false;
+        }
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(type, "@NetEvent classes must not be abstract");
+            return false;
+        }
+        for (Element nested = type; nested instanceof TypeElement; nested = nested.getEnclosingElement()) {
+            if (nested.getModifiers().contains(Modifier.PRIVATE)) {
+                error(type, "@NetEvent classes must not be private");
+                return false;
+            }
+            if (nested.getEnclosingElement() instanceof TypeElement && nested.getKind() == ElementKind.CLASS
+                    && !nested.getModifiers().contains(Modifier.STATIC)) {
+                error(type, "Nested @NetEvent classes must be static");
+                return false;
+            }
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        error(type, "@NetEvent classes must have a no-argument constructor that is not private");
+        return false;
+    }
+
+    /**
+     * Add the fields to send from {@code type} and its @NetEvent superclasses, superclass fields first.
+     *
+     * @return Whether all fields could be sent
+     */
+    private boolean collectFields(TypeElement event, TypeElement type, List<VariableElement> fields) {
+        boolean valid = true;
+        final TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() == TypeKind.DECLARED) {
+            final TypeElement superElement = (TypeElement) ((DeclaredType) superclass).asElement();
+            if (superElement.getAnnotation(NetEvent.class) != null) {
+                valid = collectFields(event, superElement, fields);
+            }
+        }
+
+        final Element eventPackage = processingEnv.getElementUtils().getPackageOf(event);
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            final Set<Modifier> modifiers = field.getModifiers();
+            if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+                continue;
+            }
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+                error(field, "Fields of @NetEvent classes must not be private or final, or must be transient");
+                valid = false;
+            } else if (!modifiers.contains(Modifier.PUBLIC) && !processingEnv.getElementUtils().getPackageOf(field).equals(eventPackage)) {
+                error(field, "Fields inherited from another package by a @NetEvent class must be public");
+                valid = false;
+            } else if (encoder(field, "") == null) {
+                error(field, "Unsupported field type " + field.asType() + " for a @NetEvent class");
+                valid = false;
+            } else {
+                for (VariableElement existing : fields) {
+                    if (existing.getSimpleName().equals(field.getSimpleName())) {
+                        error(field, "Field hides a field of a @NetEvent superclass");
+                        valid = false;
+                    }
+                }
+                fields.add(field);
+            }
+        }
+        return valid;
+    }
+
+    private boolean isEnum(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && ((DeclaredType) type).asElement().getKind() == ElementKind.ENUM;
+    }
+
+    private static String qualifiedName(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED ? ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString() : null;
+    }
+
+    private static String capitalize(String str) {
+        return Character.toUpperCase(str.charAt(0)) + str.substring(1);
+    }
+
+    /**
+     * @return A statement writing {@code value} to {@code buf}, or null if the field's type is not supported
+     */
+    private String encoder(VariableElement field, String value) {
+        final TypeMirror type = field.asType();
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "buf.put((byte) (" + value + " ? 1 : 0));";
+            case BYTE:
+                return "buf.put(" + value + ");";
+            case SHORT:
+            case CHAR:
+            case INT:
+            case LONG:
+            case FLOAT:
+            case DOUBLE:
+                return "buf.put" + capitalize(type.toString()) + "(" + value + ");";
+            case ARRAY:
+                return type.toString().equals("byte[]") ? "com.zachsthings.netevents.codec.Buffers.putBytes(buf, " + value + ");" : null;
+            case DECLARED:
+                if (isEnum(type)) {
+                    return "com.zachsthings.netevents.codec.Buffers.putOrdinal(buf, " + value + ");";
+                }
+                final String name = qualifiedName(type);
+                if (name.equals("java.lang.String")) {
+                    return "com.zachsthings.netevents.codec.Buffers.putString(buf, " + value + ");";
+                } else if (name.equals("java.util.UUID")) {
+                    return "com.zachsthings.netevents.codec.Buffers.putUUID(buf, " + value + ");";
+                } else if (BOXED_PUTS.containsKey(name)) {
+                    final String primitive = BOXED_PUTS.get(name);
+                    final String put;
+                    if (primitive.equals("boolean")) {
+                        put = "buf.put((byte) (" + value + " ? 1 : 0));";
+                    } else if (primitive.equals("byte")) {
+                        put = "buf.put(" + value + ");";
+                    } else {
+                        put = "buf.put" + capitalize(primitive) + "(" + value + ");";
+                    }
+                    return "if (" + value + " == null) { buf.put((byte) 0); } else { buf.put((byte) 1); " + put + " }";
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return An expression reading the field's value from {@code buf}
+     */
+    private String decoder(VariableElement field) {
+        final TypeMirror type = field.asType();
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "buf.get() != 0";
+            case BYTE:
+                return "buf.get()";
+            case ARRAY:
+                return "com.zachsthings.netevents.codec.Buffers.getBytes(buf)";
+            case DECLARED:
+                if (isEnum(type)) {
+                    return "com.zachsthings.netevents.codec.Buffers.getEnum(buf, " + field.getSimpleName() + "_VALUES)";
+                }
+                final String name = qualifiedName(type);
+                if (name.equals("java.lang.String")) {
+                    return "com.zachsthings.netevents.codec.Buffers.getString(buf)";
+                } else if (name.equals("java.util.UUID")) {
+                    return "com.zachsthings.netevents.codec.Buffers.getUUID(buf)";
+                }
+                final String primitive = BOXED_PUTS.get(name);
+                final String get;
+                if (primitive.equals("boolean")) {
+                    get = "Boolean.valueOf(buf.get() != 0)";
+                } else if (primitive.equals("byte")) {
+                    get = "Byte.valueOf(buf.get())";
+                } else {
+                    get = name + ".valueOf(buf.get" + capitalize(primitive) + "())";
+                }
+                return "buf.get() == 0 ? null : " + get;
+            default:
+                return "buf.get" + capitalize(type.toString()) + "()";
+        }
+    }
+}
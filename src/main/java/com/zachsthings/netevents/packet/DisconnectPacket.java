@@ -67,6 +67,7 @@ public class DisconnectPacket implements Packet {
         buf.put(stringBytes);
         buf.put(tryReconnect ? (byte) 1 : 0);
 
+        buf.flip();
         return buf;
     }
 }
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.packet;
+
+import com.zachsthings.netevents.codec.EventCodec;
+import com.zachsthings.netevents.codec.EventCodecRegistry;
+import org.bukkit.event.Event;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding shared by packets carrying events: a format byte, followed by the event's codec output or its Java serialization.
+ */
+final class EventEncoding {
+    private static final byte FORMAT_SERIALIZED = 0, FORMAT_CODEC = 1;
+    private static final int INITIAL_ENCODE_SIZE = 4096;
+    private static final int MAX_KEPT_ENCODE_SIZE = 1 << 20; // Same as the largest pooled buffer
+    // Reused between encodes on the same thread, grown when a packet doesn't fit
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(INITIAL_ENCODE_SIZE);
+        }
+    };
+
+    /**
+     * Writes a packet's payload into a buffer, which may be too small.
+     */
+    interface Writer {
+        void writeTo(ByteBuffer buf) throws IOException;
+    }
+
+    private EventEncoding() {
+    }
+
+    /**
+     * Encode a payload using this thread's scratch buffer, growing it until the payload fits.
+     * Buffers grown past {@link #MAX_KEPT_ENCODE_SIZE} are only used for this payload.
+     *
+     * @param writer Writes the payload
+     * @return A buffer of exactly the payload's size, ready for reading
+     * @throws IOException if the payload can't be written
+     */
+    static ByteBuffer encode(Writer writer) throws IOException {
+        ByteBuffer buf = ENCODE_BUFFER.get();
+        while (true) {
+            buf.clear();
+            try {
+                writer.writeTo(buf);
+                break;
+            } catch (BufferOverflowException e) {
+                buf = ByteBuffer.allocate(buf.capacity() * 2);
+                if (buf.capacity() <= MAX_KEPT_ENCODE_SIZE) {
+                    ENCODE_BUFFER.set(buf);
+                }
+            }
+        }
+        buf.flip();
+        final ByteBuffer ret = ByteBuffer.allocate(buf.remaining());
+        ret.put(buf);
+        ret.flip();
+        return ret;
+    }
+
+    @SuppressWarnings("unchecked")
+    static void writeEvent(ByteBuffer buf, Event event, EventCodecRegistry codecs) throws IOException {
+        final EventCodec<Event> codec = (EventCodec<Event>) codecs.getCodec(event.getClass());
+        if (codec != null) {
+            buf.put(FORMAT_CODEC);
+            codec.encode(event, buf);
+        } else {
+            buf.put(FORMAT_SERIALIZED);
+            ObjectOutputStream oos = new ObjectOutputStream(new ByteBufferOutputStream(buf));
+            oos.writeObject(event);
+            oos.flush();
+            oos.close();
+        }
+    }
+
+    /**
+     * Read an event written by {@link #writeEvent(ByteBuffer, Event, EventCodecRegistry)}.
+     *
+     * @param in The encoded event as the buffer's remaining bytes
+     * @param type The event's class
+     * @param codecs The codecs to decode with
+     * @return The event, or null if a class or codec it needs is missing on this server
+     * @throws IOException if the event could not be decoded
+     */
+    static Event readEvent(ByteBuffer in, Class<? extends Event> type, EventCodecRegistry codecs) throws IOException {
+        Object o;
+        final byte format = in.get();
+        switch (format) {
+            case FORMAT_SERIALIZED:
+                try {
+                    o = new ObjectInputStream(new ByteBufferInputStream(in)).readObject();
+                } catch (ClassNotFoundException e) {
+                    return null; // A class used by the event's fields is missing
+                }
+                break;
+            case FORMAT_CODEC:
+                final EventCodec<?> codec = codecs.getCodec(type);
+                if (codec == null) {
+                    return null;
+                }
+                o = codec.decode(in.slice());
+                break;
+            default:
+                throw new IOException("Unknown event format " + format);
+        }
+
+        if (!type.isInstance(o)) {
+            throw new IOException("Read object " + o + " is not a " + type.getName());
+        }
+        return (Event) o;
+    }
+}
@@ -16,59 +16,317 @@
 package com.zachsthings.netevents.packet;
 
 import com.zachsthings.netevents.Forwarder;
+import com.zachsthings.netevents.KeyedNetEvent;
+import com.zachsthings.netevents.codec.Buffers;
+import com.zachsthings.netevents.codec.EventCodecRegistry;
 import org.bukkit.event.Event;
 
-import java.io.*;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents an event that can be called across servers
  *
- * All events must implement both the zero-args and argument-containing constructors
+ * Events are encoded with the codec registered for their class in {@link EventCodecRegistry}, or with Java serialization if there is none.
+ * The payload starts with the sending server's id for the event's class, so receivers can skip events of unknown types without decoding them.
+ * Events whose class isn't available on the receiving server are still relayed, with their payload copied as received.
+ * It is followed by the event's time to live, the number of times it may still be sent on, which is decremented by each server receiving it.
  */
-public class EventPacket implements Packet {
+public class EventPacket implements Packet, ReferenceCounted {
+    /**
+     * Time to live of events created without one
+     */
+    public static final int DEFAULT_TTL = 16;
+    /**
+     * Largest time to live an event can have
+     */
+    public static final int MAX_TTL = 255;
+    private static final byte TARGET_ALL = 0, TARGET_SERVER = 1, TARGET_GROUP = 2;
+    private static final byte TARGET_MASK = 0x7F, FLAG_KEYED = (byte) 0x80; // Set on the target byte when a state key follows it
+
     private final UUID uid;
-    private final Event sendEvent;
+    private final UUID origin; // The server that called the event
+    private final UUID targetServer; // Only server to call the event on, if any
+    private final String targetGroup; // Only servers in this group call the event, if any
+    private final int ttl; // Times the event may still be sent on, already decremented for received events
+    private final String key; // From KeyedNetEvent, if any
+    private final String coalescingKey; // Type and key, identifying events that replace each other
+    private volatile Event sendEvent; // Decoded on first access for received events
+    private final EventCodecRegistry codecs;
+    private final Class<? extends Event> type; // Null if the class isn't available here, in which case the event is only relayed
+    private final String typeName;
+    private final int typeId; // This server's id for the event's class
+    private volatile ByteBuffer encoded; // Serialized once (or as received), then shared between every connection this is written to
+    private final ByteBuffer received; // Payload as received from another server, prefixed with the sender's type id
+    private final ByteBuffer receivedEvent; // The encoded event within received, starting with its format
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final Runnable releaser; // Frees the received buffer, if any
 
     /**
-     * Constructor for events received over the network
+     * Create a packet for a new event called on this server, with a chosen unique id.
      *
      * @param uid Event unique id
+     * @param origin The UUID of the server that called the event
+     * @param sendEvent The event
+     * @param codecs The codecs to encode the event with
      */
-    public EventPacket(UUID uid, Event sendEvent) {
+    public EventPacket(UUID uid, UUID origin, Event sendEvent, EventCodecRegistry codecs) {
+        this(uid, origin, null, null, DEFAULT_TTL, keyOf(sendEvent), sendEvent, codecs, sendEvent.getClass(), sendEvent.getClass().getName(), null, null, null);
+    }
+
+    private EventPacket(UUID uid, UUID origin, UUID targetServer, String targetGroup, int ttl, String key, Event sendEvent, EventCodecRegistry codecs,
+                        Class<? extends Event> type, String typeName, ByteBuffer received, ByteBuffer receivedEvent, Runnable releaser) {
         this.uid = uid;
+        this.origin = origin;
+        this.targetServer = targetServer;
+        this.targetGroup = targetGroup;
+        this.ttl = ttl;
+        this.key = key;
         this.sendEvent = sendEvent;
+        this.codecs = codecs;
+        this.type = type;
+        this.typeName = typeName;
+        this.coalescingKey = key == null ? null : typeName + '\0' + key;
+        this.typeId = codecs.getTypeId(typeName);
+        this.received = received;
+        this.receivedEvent = receivedEvent;
+        this.releaser = releaser;
+    }
+
+    /**
+     * Create a packet for a new event called on this server.
+     *
+     * @param sendEvent The event
+     * @param origin This server's UUID
+     * @param codecs The codecs to encode the event with
+     */
+    public EventPacket(Event sendEvent, UUID origin, EventCodecRegistry codecs) {
+        this(UUID.randomUUID(), origin, sendEvent, codecs);
+    }
+
+    /**
+     * Create a packet for a new event called on this server, to be called on one other server only.
+     *
+     * @param sendEvent The event
+     * @param origin This server's UUID
+     * @param targetServer The UUID of the server to call the event on
+     * @param codecs The codecs to encode the event with
+     */
+    public EventPacket(Event sendEvent, UUID origin, UUID targetServer, EventCodecRegistry codecs) {
+        this(sendEvent, origin, targetServer, null, DEFAULT_TTL, codecs);
+    }
+
+    /**
+     * Create a packet for a new event called on this server, to be called on the servers in a group only.
+     *
+     * @param sendEvent The event
+     * @param origin This server's UUID
+     * @param targetGroup The group of servers to call the event on
+     * @param codecs The codecs to encode the event with
+     */
+    public EventPacket(Event sendEvent, UUID origin, String targetGroup, EventCodecRegistry codecs) {
+        this(sendEvent, origin, null, targetGroup, DEFAULT_TTL, codecs);
+    }
+
+    /**
+     * Create a packet for a new event called on this server.
+     *
+     * @param sendEvent The event
+     * @param origin This server's UUID
+     * @param targetServer The UUID of the only server to call the event on, or null
+     * @param targetGroup The group of servers to call the event on, or null
+     * @param ttl The number of times the event may be sent from one server to another, from 1 to {@link #MAX_TTL}
+     * @param codecs The codecs to encode the event with
+     */
+    public EventPacket(Event sendEvent, UUID origin, UUID targetServer, String targetGroup, int ttl, EventCodecRegistry codecs) {
+        this(UUID.randomUUID(), origin, targetServer, targetGroup, checkTtl(ttl), keyOf(sendEvent), sendEvent, codecs,
+                sendEvent.getClass(), sendEvent.getClass().getName(), null, null, null);
     }
 
-    public EventPacket(Event sendEvent) {
-        this(UUID.randomUUID(), sendEvent);
+    private static String keyOf(Event event) {
+        return event instanceof KeyedNetEvent ? ((KeyedNetEvent) event).getStateKey() : null;
+    }
+
+    private static int checkTtl(int ttl) {
+        if (ttl < 1 || ttl > MAX_TTL) {
+            throw new IllegalArgumentException("Event TTL must be between 1 and " + MAX_TTL + ", was " + ttl);
+        }
+        return ttl;
     }
 
     public UUID getUid() {
         return uid;
     }
 
-    public Event getSendEvent() {
-        return sendEvent;
+    /**
+     * @return The UUID of the server the event was called on
+     */
+    public UUID getOrigin() {
+        return origin;
     }
 
-    public static EventPacket read(ByteBuffer buf) throws IOException {
-        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining()));
-        final long msb = ois.readLong(), lsb = ois.readLong();
-        final UUID uid = new UUID(msb, lsb);
+    /**
+     * @return The only server the event should be called on, or null if it isn't sent to a single server
+     */
+    public UUID getTargetServer() {
+        return targetServer;
+    }
 
-        Object o;
-        try {
-            o = ois.readObject();
-        } catch (ClassNotFoundException e) {
-            return null;
+    /**
+     * @return The group of servers the event should be called on, or null if it isn't sent to a group
+     */
+    public String getTargetGroup() {
+        return targetGroup;
+    }
+
+    /**
+     * @return The number of times the event may still be sent on. Events with none left are not forwarded
+     */
+    public int getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @return The event's {@link KeyedNetEvent#getStateKey() state key}, or null if it has none
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return A key equal for events of the same type with the same state key, which replace each other while queued, or null if the event has no state key
+     */
+    public String getCoalescingKey() {
+        return coalescingKey;
+    }
+
+    /**
+     * Get the event, decoding it first if it was received and has not been decoded yet.
+     * Received events can only be decoded while this packet is retained.
+     *
+     * @return The event, or null if a class or codec it needs is missing on this server
+     * @throws IOException if the event could not be decoded
+     */
+    public Event getSendEvent() throws IOException {
+        Event event = sendEvent;
+        if (event == null && type != null) {
+            synchronized (this) {
+                event = sendEvent;
+                if (event == null) {
+                    sendEvent = event = decode();
+                }
+            }
         }
+        return event;
+    }
+
+    /**
+     * @return Whether the event has been decoded, or was created locally
+     */
+    public boolean isDecoded() {
+        return sendEvent != null;
+    }
+
+    /**
+     * @return The event's class, or null if the packet was received and the class isn't available on this server
+     */
+    public Class<? extends Event> getType() {
+        return type;
+    }
+
+    /**
+     * @return Whether the event's class isn't available on this server, so the event can only be relayed to other servers
+     */
+    public boolean isRelayOnly() {
+        return type == null;
+    }
+
+    /**
+     * @return The event's class name
+     */
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /**
+     * @return The id this server uses for the event's class, which must be defined to a connection before this packet is written to it
+     */
+    public int getTypeId() {
+        return typeId;
+    }
+
+    /**
+     * Read an event packet. Only the packet's header is read here; the event is decoded when {@link #getSendEvent()} is first called.
+     * The received payload is kept so the event can be relayed to other servers without being encoded again,
+     * so {@code buf}'s contents must not be modified afterwards.
+     *
+     * @param buf The packet payload
+     * @param types The event types defined by the sending server
+     * @param codecs The codecs to decode the event with
+     * @return The read packet, which is {@link #isRelayOnly() relay-only} if the event's class is not known on this server
+     * @throws IOException if the payload is invalid
+     */
+    public static EventPacket read(ByteBuffer buf, EventTypeTable types, EventCodecRegistry codecs) throws IOException {
+        return read(buf, types, codecs, null);
+    }
 
-        if (!(o instanceof Event)) {
-            throw new IOException("Read object " + o + " is not an Event");
+    /**
+     * Read an event packet from a reusable buffer.
+     * If a packet is returned, it owns {@code buf} and runs {@code releaser} once its last reference is released.
+     *
+     * @see #read(ByteBuffer, EventTypeTable, EventCodecRegistry)
+     * @param buf The packet payload
+     * @param types The event types defined by the sending server
+     * @param codecs The codecs to decode the event with
+     * @param releaser Task freeing {@code buf}, or null
+     * @return The read packet, which is {@link #isRelayOnly() relay-only} if the event's class is not known on this server
+     * @throws IOException if the payload is invalid
+     */
+    public static EventPacket read(ByteBuffer buf, EventTypeTable types, EventCodecRegistry codecs, Runnable releaser) throws IOException {
+        final ByteBuffer in = buf.duplicate();
+        final int receivedTypeId = Buffers.getVarInt(in);
+        final EventTypeTable.Type type = types.get(receivedTypeId);
+        final int ttl = (in.get() & 0xFF) - 1;
+        final long msb = in.getLong(), lsb = in.getLong();
+        final UUID uid = new UUID(msb, lsb);
+        final long originMsb = in.getLong(), originLsb = in.getLong();
+        final UUID origin = new UUID(originMsb, originLsb);
+        UUID targetServer = null;
+        String targetGroup = null;
+        final byte target = in.get();
+        switch (target & TARGET_MASK) {
+            case TARGET_ALL:
+                break;
+            case TARGET_SERVER:
+                final long targetMsb = in.getLong(), targetLsb = in.getLong();
+                targetServer = new UUID(targetMsb, targetLsb);
+                break;
+            case TARGET_GROUP:
+                targetGroup = Buffers.getString(in);
+                if (targetGroup == null) {
+                    throw new IOException("Event packet has a null target group");
+                }
+                break;
+            default:
+                throw new IOException("Unknown event target " + target);
         }
-        return new EventPacket(uid, (Event) o);
+        String key = null;
+        if ((target & FLAG_KEYED) != 0) {
+            key = Buffers.getString(in);
+            if (key == null) {
+                throw new IOException("Event packet has a null state key");
+            }
+        }
+        if (!in.hasRemaining()) {
+            throw new IOException("Event packet has no event");
+        }
+        return new EventPacket(uid, origin, targetServer, targetGroup, ttl, key, null, codecs, type.getType(), type.getName(), buf.slice(), in.slice(), releaser);
+    }
+
+    private Event decode() throws IOException {
+        return EventEncoding.readEvent(receivedEvent.duplicate(), type, codecs);
     }
 
     @Override
@@ -81,25 +339,91 @@ public class EventPacket implements Packet {
         forwarder.getPlugin().callEvent(this, forwarder);
     }
 
+    @Override
+    public void retain() {
+        refCount.incrementAndGet();
+    }
+
+    @Override
+    public void release() {
+        if (refCount.decrementAndGet() == 0 && releaser != null) {
+            releaser.run();
+        }
+    }
+
+    @Override
     public ByteBuffer write() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(baos);
-        oos.writeLong(uid.getMostSignificantBits());
-        oos.writeLong(uid.getLeastSignificantBits());
+        ByteBuffer encoded = this.encoded;
+        if (encoded == null) {
+            synchronized (this) {
+                encoded = this.encoded;
+                if (encoded == null) {
+                    this.encoded = encoded = received != null ? reencode() : encode();
+                }
+            }
+        }
+        return encoded.asReadOnlyBuffer();
+    }
+
+    private ByteBuffer encode() throws IOException {
+        return EventEncoding.encode(new EventEncoding.Writer() {
+            @Override
+            public void writeTo(ByteBuffer buf) throws IOException {
+                encodeTo(buf);
+            }
+        });
+    }
 
-        oos.writeObject(sendEvent);
-        oos.flush();
-        oos.close();
+    /**
+     * Replace the sender's type id and time to live in the received payload with ours. The rest of the payload is copied as-is.
+     */
+    private ByteBuffer reencode() throws IOException {
+        final ByteBuffer body = received.duplicate();
+        Buffers.getVarInt(body);
+        body.get();
+        final ByteBuffer ret = ByteBuffer.allocate(Buffers.varIntSize(typeId) + 1 + body.remaining());
+        Buffers.putVarInt(ret, typeId);
+        ret.put((byte) ttl);
+        ret.put(body);
+        ret.flip();
+        return ret;
+    }
+
+    private void encodeTo(ByteBuffer buf) throws IOException {
+        Buffers.putVarInt(buf, typeId);
+        buf.put((byte) ttl);
+        buf.putLong(uid.getMostSignificantBits());
+        buf.putLong(uid.getLeastSignificantBits());
+        buf.putLong(origin.getMostSignificantBits());
+        buf.putLong(origin.getLeastSignificantBits());
+        final byte keyed = key != null ? FLAG_KEYED : 0;
+        if (targetServer != null) {
+            buf.put((byte) (TARGET_SERVER | keyed));
+            buf.putLong(targetServer.getMostSignificantBits());
+            buf.putLong(targetServer.getLeastSignificantBits());
+        } else if (targetGroup != null) {
+            buf.put((byte) (TARGET_GROUP | keyed));
+            Buffers.putString(buf, targetGroup);
+        } else {
+            buf.put((byte) (TARGET_ALL | keyed));
+        }
+        if (key != null) {
+            Buffers.putString(buf, key);
+        }
 
-        ByteBuffer buf = ByteBuffer.wrap(baos.toByteArray());
-        buf.position(buf.limit());
-        return buf;
+        EventEncoding.writeEvent(buf, sendEvent, codecs);
     }
 
     @Override
     public String toString() {
         return "EventPacket{" +
                 "uid=" + uid +
+                ", origin=" + origin +
+                (targetServer != null ? ", targetServer=" + targetServer : "") +
+                (targetGroup != null ? ", targetGroup=" + targetGroup : "") +
+                ", ttl=" + ttl +
+                (key != null ? ", key=" + key : "") +
+                ", type=" + typeName +
                 ", sendEvent=" + sendEvent +
                 '}';
     }
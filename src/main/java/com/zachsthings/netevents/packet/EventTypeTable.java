@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.packet;
+
+import com.zachsthings.netevents.codec.EventCodecRegistry;
+import org.bukkit.event.Event;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The event types a remote server has defined with {@link TypeDefinitionPacket}s. Each connection has its own table.
+ *
+ * Classes are looked up once when defined, so events of types unknown to this server can be relayed without decoding them.
+ * Only accessed by the thread reading from the connection.
+ */
+public class EventTypeTable {
+    private static final int MAX_TYPE_ID = 65535;
+
+    /**
+     * An event type defined by the remote server.
+     */
+    public static class Type {
+        private final String name;
+        private final Class<? extends Event> type;
+
+        Type(String name, Class<? extends Event> type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The event class, or null if it isn't available on this server
+         */
+        public Class<? extends Event> getType() {
+            return type;
+        }
+    }
+
+    private final EventCodecRegistry codecs;
+    private Type[] types = new Type[16];
+
+    public EventTypeTable(EventCodecRegistry codecs) {
+        this.codecs = codecs;
+    }
+
+    public void define(TypeDefinitionPacket definition) throws IOException {
+        final int id = definition.getTypeId();
+        if (id < 0 || id > MAX_TYPE_ID) {
+            throw new IOException("Invalid type id " + id);
+        }
+        if (id >= types.length) {
+            types = Arrays.copyOf(types, Math.max(id + 1, types.length * 2));
+        }
+        types[id] = new Type(definition.getClassName(), codecs.findEventClass(definition.getClassName()));
+    }
+
+    /**
+     * Get a type defined by the remote server.
+     *
+     * @param id The remote server's id for the type
+     * @return The type
+     * @throws IOException if the remote server has not defined the id
+     */
+    public Type get(int id) throws IOException {
+        final Type type = id >= 0 && id < types.length ? types[id] : null;
+        if (type == null) {
+            throw new IOException("Received event with undefined type id " + id);
+        }
+        return type;
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.packet;
+
+import com.zachsthings.netevents.Forwarder;
+import com.zachsthings.netevents.codec.Buffers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Announces which servers a server is directly connected to, which groups it is in, and which event types it listens for.
+ * Flooded to the whole network, newest sequence number wins.
+ */
+public class LinkStatePacket implements Packet {
+    /**
+     * Interest entry for a server that wants every event
+     */
+    public static final String ALL_TYPES = "*";
+
+    private final UUID origin;
+    private final long sequence;
+    private final Set<UUID> neighbors;
+    private final Set<String> groups;
+    private final Set<String> interests;
+
+    public LinkStatePacket(UUID origin, long sequence, Set<UUID> neighbors, Set<String> groups, Set<String> interests) {
+        this.origin = origin;
+        this.sequence = sequence;
+        this.neighbors = Collections.unmodifiableSet(neighbors);
+        this.groups = Collections.unmodifiableSet(groups);
+        this.interests = Collections.unmodifiableSet(interests);
+    }
+
+    /**
+     * @return The server whose connections are described
+     */
+    public UUID getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return Sequence number, increasing with every change to the origin's connections
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return The servers the origin is connected to
+     */
+    public Set<UUID> getNeighbors() {
+        return neighbors;
+    }
+
+    /**
+     * @return The groups the origin is in
+     */
+    public Set<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return Names of the event classes the origin has listeners for, or {@link #ALL_TYPES}
+     */
+    public Set<String> getInterests() {
+        return interests;
+    }
+
+    @Override
+    public byte getOpcode() {
+        return Opcodes.LINK_STATE;
+    }
+
+    @Override
+    public void handle(Forwarder forwarder) {
+        forwarder.getPlugin().getRoutingTable().receive(this, forwarder);
+    }
+
+    public static LinkStatePacket read(ByteBuffer buf) throws IOException {
+        final long originMsb = buf.getLong(), originLsb = buf.getLong();
+        final long sequence = buf.getLong();
+        final int count = Buffers.getVarInt(buf);
+        if (count < 0 || count > buf.remaining() / 16) {
+            throw new IOException("Invalid neighbor count " + count);
+        }
+        final Set<UUID> neighbors = new HashSet<>();
+        for (int i = 0; i < count; ++i) {
+            final long msb = buf.getLong(), lsb = buf.getLong();
+            neighbors.add(new UUID(msb, lsb));
+        }
+        final Set<String> groups = readStrings(buf, "group");
+        final Set<String> interests = readStrings(buf, "interest");
+        return new LinkStatePacket(new UUID(originMsb, originLsb), sequence, neighbors, groups, interests);
+    }
+
+    private static Set<String> readStrings(ByteBuffer buf, String kind) throws IOException {
+        final int count = Buffers.getVarInt(buf);
+        if (count < 0 || count > buf.remaining() / 4) {
+            throw new IOException("Invalid " + kind + " count " + count);
+        }
+        final Set<String> ret = new HashSet<>();
+        for (int i = 0; i < count; ++i) {
+            final String str = Buffers.getString(buf);
+            if (str == null) {
+                throw new IOException("Null " + kind + " name");
+            }
+            ret.add(str);
+        }
+        return ret;
+    }
+
+    private static void writeStrings(ByteBuffer buf, Set<String> strings) {
+        Buffers.putVarInt(buf, strings.size());
+        for (String str : strings) {
+            Buffers.putString(buf, str);
+        }
+    }
+
+    private static int stringsSize(Set<String> strings) {
+        int size = 5;
+        for (String str : strings) {
+            size += 4 + 3 * str.length();
+        }
+        return size;
+    }
+
+    @Override
+    public ByteBuffer write() throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(16 + 8 + 5 + 16 * neighbors.size() + stringsSize(groups) + stringsSize(interests));
+        buf.putLong(origin.getMostSignificantBits());
+        buf.putLong(origin.getLeastSignificantBits());
+        buf.putLong(sequence);
+        Buffers.putVarInt(buf, neighbors.size());
+        for (UUID neighbor : neighbors) {
+            buf.putLong(neighbor.getMostSignificantBits());
+            buf.putLong(neighbor.getLeastSignificantBits());
+        }
+        writeStrings(buf, groups);
+        writeStrings(buf, interests);
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public String toString() {
+        return "LinkStatePacket{" +
+                "origin=" + origin +
+                ", sequence=" + sequence +
+                ", neighbors=" + neighbors +
+                ", groups=" + groups +
+                ", interests=" + interests +
+                '}';
+    }
+}
@@ -22,5 +22,9 @@ public class Opcodes {
     public static final byte SERVER_ID = 0;
     public static final byte PASS_EVENT = 1;
     public static final byte DISCONNECT = 3;
+    public static final byte TYPE_DEFINITION = 4;
+    // 5 was SUBSCRIPTION. Interests are now part of LINK_STATE
+    public static final byte LINK_STATE = 6;
+    public static final byte RPC = 7;
 
 }
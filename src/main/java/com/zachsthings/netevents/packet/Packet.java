@@ -26,5 +26,15 @@ import java.nio.ByteBuffer;
 public interface Packet {
     public byte getOpcode();
     public void handle(Forwarder session) throws IOException;
+
+    /**
+     * Encode this packet's payload.
+     *
+     * The returned buffer is ready to be read from (positioned at the start of the payload), and is only read from by the caller.
+     * Implementations may return views of a shared buffer when a packet is written to several connections.
+     *
+     * @return The encoded payload
+     * @throws IOException if unable to encode this packet
+     */
     public ByteBuffer write() throws IOException;
 }
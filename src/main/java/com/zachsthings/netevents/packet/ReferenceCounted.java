@@ -0,0 +1,28 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.packet;
+
+/**
+ * A packet holding on to a shared resource (like a pooled receive buffer) that is freed once every holder has released it.
+ *
+ * Whoever reads such a packet holds the first reference. Anything keeping the packet around after that, such as an output queue,
+ * must {@link #retain()} it and {@link #release()} it once done.
+ */
+public interface ReferenceCounted {
+    public void retain();
+
+    public void release();
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.packet;
+
+import com.zachsthings.netevents.Forwarder;
+import com.zachsthings.netevents.codec.Buffers;
+import com.zachsthings.netevents.codec.EventCodecRegistry;
+import org.bukkit.event.Event;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * A request, response or error of a remote call between two servers.
+ *
+ * The call's events are identified by class name rather than connection type id, so servers relaying a call pass its payload on
+ * unchanged apart from the time to live.
+ */
+public class RpcPacket implements Packet {
+    public enum Kind {
+        REQUEST,
+        RESPONSE,
+        ERROR
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    private final Kind kind;
+    private final int ttl; // Times the packet may still be sent on, already decremented for received packets
+    private final long correlationId;
+    private final UUID source;
+    private final UUID destination;
+    private final String typeName;
+    private final Event sendEvent;
+    private final String message;
+    private final EventCodecRegistry codecs;
+    private final ByteBuffer received;
+    private final ByteBuffer receivedEvent;
+
+    private RpcPacket(Kind kind, int ttl, long correlationId, UUID source, UUID destination, String typeName, Event sendEvent,
+                      String message, EventCodecRegistry codecs, ByteBuffer received, ByteBuffer receivedEvent) {
+        this.kind = kind;
+        this.ttl = ttl;
+        this.correlationId = correlationId;
+        this.source = source;
+        this.destination = destination;
+        this.typeName = typeName;
+        this.sendEvent = sendEvent;
+        this.message = message;
+        this.codecs = codecs;
+        this.received = received;
+        this.receivedEvent = receivedEvent;
+    }
+
+    /**
+     * Create a request.
+     *
+     * @param correlationId The id the response will be sent with, unique among the source's calls
+     * @param source The calling server
+     * @param destination The server to handle the request
+     * @param request The request event
+     * @param ttl The number of times the request may be sent from one server to another, from 1 to {@link EventPacket#MAX_TTL}
+     * @param codecs The codecs to encode the request with
+     * @return The packet
+     */
+    public static RpcPacket request(long correlationId, UUID source, UUID destination, Event request, int ttl, EventCodecRegistry codecs) {
+        return new RpcPacket(Kind.REQUEST, checkTtl(ttl), correlationId, source, destination, request.getClass().getName(), request, null, codecs, null, null);
+    }
+
+    /**
+     * Create a response to a request.
+     *
+     * @param request The request being answered
+     * @param source The responding server
+     * @param response The response event, may be null
+     * @param ttl The number of times the response may be sent from one server to another, from 1 to {@link EventPacket#MAX_TTL}
+     * @param codecs The codecs to encode the response with
+     * @return The packet
+     */
+    public static RpcPacket response(RpcPacket request, UUID source, Event response, int ttl, EventCodecRegistry codecs) {
+        return new RpcPacket(Kind.RESPONSE, checkTtl(ttl), request.getCorrelationId(), source, request.getSource(),
+                response == null ? null : response.getClass().getName(), response, null, codecs, null, null);
+    }
+
+    /**
+     * Create an error reply to a request.
+     *
+     * @param request The request that failed
+     * @param source The server the request failed on
+     * @param message A description of the failure
+     * @param ttl The number of times the reply may be sent from one server to another, from 1 to {@link EventPacket#MAX_TTL}
+     * @return The packet
+     */
+    public static RpcPacket error(RpcPacket request, UUID source, String message, int ttl) {
+        return new RpcPacket(Kind.ERROR, checkTtl(ttl), request.getCorrelationId(), source, request.getSource(), null, null,
+                String.valueOf(message), null, null, null);
+    }
+
+    private static int checkTtl(int ttl) {
+        if (ttl < 1 || ttl > EventPacket.MAX_TTL) {
+            throw new IllegalArgumentException("RPC TTL must be between 1 and " + EventPacket.MAX_TTL + ", was " + ttl);
+        }
+        return ttl;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The number of times this packet may still be sent on. Received packets with no time left are not relayed
+     */
+    public int getTtl() {
+        return ttl;
+    }
+
+    public long getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * @return The server that sent this packet
+     */
+    public UUID getSource() {
+        return source;
+    }
+
+    /**
+     * @return The server this packet is for
+     */
+    public UUID getDestination() {
+        return destination;
+    }
+
+    /**
+     * @return The class name of the carried event, or null if there is none
+     */
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /**
+     * @return The failure description of an error reply, otherwise null
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Get the carried event, decoding it if this packet was received.
+     *
+     * @return The event, or null if there is none or its class or codec is missing on this server
+     * @throws IOException if the event could not be decoded
+     */
+    public Event getEvent() throws IOException {
+        if (sendEvent != null || receivedEvent == null) {
+            return sendEvent;
+        }
+        final Class<? extends Event> type = codecs.findEventClass(typeName);
+        if (type == null) {
+            return null;
+        }
+        return EventEncoding.readEvent(receivedEvent.duplicate(), type, codecs);
+    }
+
+    @Override
+    public byte getOpcode() {
+        return Opcodes.RPC;
+    }
+
+    @Override
+    public void handle(Forwarder session) {
+        session.getPlugin().getRpcManager().receive(this, session);
+    }
+
+    /**
+     * Read a packet, copying it out of the buffer.
+     *
+     * @param buf The packet's payload
+     * @param codecs The codecs to decode the carried event with
+     * @return The packet
+     * @throws IOException if the payload is invalid
+     */
+    public static RpcPacket read(ByteBuffer buf, EventCodecRegistry codecs) throws IOException {
+        final ByteBuffer copy = ByteBuffer.allocate(buf.remaining());
+        copy.put(buf);
+        copy.flip();
+        final ByteBuffer in = copy.duplicate();
+
+        final int kindId = in.get();
+        if (kindId < 0 || kindId >= KINDS.length) {
+            throw new IOException("Unknown RPC packet kind " + kindId);
+        }
+        final Kind kind = KINDS[kindId];
+        final int ttl = (in.get() & 0xFF) - 1;
+        copy.put(1, (byte) Math.max(ttl, 0)); // Relayed with the time to live we were left
+        final long correlationId = in.getLong();
+        final UUID source = Buffers.getUUID(in);
+        final UUID destination = Buffers.getUUID(in);
+        String typeName = null, message = null;
+        ByteBuffer receivedEvent = null;
+        if (kind == Kind.ERROR) {
+            message = Buffers.getString(in);
+        } else {
+            typeName = Buffers.getString(in);
+            if (typeName != null) {
+                receivedEvent = in.slice();
+            }
+        }
+        return new RpcPacket(kind, ttl, correlationId, source, destination, typeName, null, message, codecs, copy, receivedEvent);
+    }
+
+    @Override
+    public ByteBuffer write() throws IOException {
+        if (received != null) {
+            return received.duplicate();
+        }
+        return EventEncoding.encode(new EventEncoding.Writer() {
+            @Override
+            public void writeTo(ByteBuffer buf) throws IOException {
+                buf.put((byte) kind.ordinal());
+                buf.put((byte) ttl);
+                buf.putLong(correlationId);
+                Buffers.putUUID(buf, source);
+                Buffers.putUUID(buf, destination);
+                if (kind == Kind.ERROR) {
+                    Buffers.putString(buf, message);
+                } else {
+                    Buffers.putString(buf, typeName);
+                    if (sendEvent != null) {
+                        EventEncoding.writeEvent(buf, sendEvent, codecs);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "RpcPacket{" +
+                "kind=" + kind +
+                ", ttl=" + ttl +
+                ", correlationId=" + correlationId +
+                ", source=" + source +
+                ", destination=" + destination +
+                ", typeName='" + typeName + '\'' +
+                (message != null ? ", message='" + message + '\'' : "") +
+                '}';
+    }
+}
@@ -25,10 +25,36 @@ import java.util.UUID;
  * Packet used for server identification
  */
 public class ServerIDPacket implements Packet {
+    /**
+     * Capability bit: the server accepts compressed frames
+     */
+    public static final int CAP_COMPRESSION = 1;
+    /**
+     * Capabilities of servers running this version
+     */
+    public static final int CAPABILITIES = CAP_COMPRESSION;
+
     private final UUID serverUid;
+    private final int capabilities;
 
     public ServerIDPacket(UUID serverUid) {
+        this(serverUid, CAPABILITIES);
+    }
+
+    /**
+     * @param serverUid The sending server's UUID
+     * @param capabilities Bits for the optional protocol features the sending server supports
+     */
+    public ServerIDPacket(UUID serverUid, int capabilities) {
         this.serverUid = serverUid;
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * @return Bits for the optional protocol features the sending server supports. Servers from before capabilities were sent have none
+     */
+    public int getCapabilities() {
+        return capabilities;
     }
 
     @Override
@@ -45,19 +71,24 @@ public class ServerIDPacket implements Packet {
             }
         }
         session.setRemoteServerUUID(serverUid);
+        session.getPlugin().getRoutingTable().neighborConnected(session);
     }
 
     public static ServerIDPacket read(ByteBuffer buffer) throws IOException {
         long msb = buffer.getLong();
         long lsb = buffer.getLong();
-        return new ServerIDPacket(new UUID(msb, lsb));
+        // Older servers ignore the capabilities after the UUID, and don't send any
+        final int capabilities = buffer.remaining() >= 4 ? buffer.getInt() : 0;
+        return new ServerIDPacket(new UUID(msb, lsb), capabilities);
     }
 
     @Override
     public ByteBuffer write() throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(2 * 8);
+        ByteBuffer buffer = ByteBuffer.allocate(2 * 8 + 4);
         buffer.putLong(serverUid.getMostSignificantBits());
         buffer.putLong(serverUid.getLeastSignificantBits());
+        buffer.putInt(capabilities);
+        buffer.flip();
         return buffer;
     }
 }
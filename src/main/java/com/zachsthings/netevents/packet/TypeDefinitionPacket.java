@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.packet;
+
+import com.zachsthings.netevents.Forwarder;
+import com.zachsthings.netevents.codec.Buffers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tells the remote server which event class a type id refers to. Sent before the first event of each type on a connection.
+ */
+public class TypeDefinitionPacket implements Packet {
+    private final int typeId;
+    private final String className;
+
+    public TypeDefinitionPacket(int typeId, String className) {
+        this.typeId = typeId;
+        this.className = className;
+    }
+
+    public int getTypeId() {
+        return typeId;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    @Override
+    public byte getOpcode() {
+        return Opcodes.TYPE_DEFINITION;
+    }
+
+    @Override
+    public void handle(Forwarder forwarder) {
+        // Definitions are applied by the connection as soon as they are read, so they are known before the events using them
+    }
+
+    public static TypeDefinitionPacket read(ByteBuffer buf) throws IOException {
+        final int typeId = Buffers.getVarInt(buf);
+        final String className = Buffers.getString(buf);
+        if (className == null) {
+            throw new IOException("Type definition " + typeId + " has no class name");
+        }
+        return new TypeDefinitionPacket(typeId, className);
+    }
+
+    @Override
+    public ByteBuffer write() throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(5 + 4 + className.length() * 3);
+        Buffers.putVarInt(buf, typeId);
+        Buffers.putString(buf, className);
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public String toString() {
+        return "TypeDefinitionPacket{" +
+                "typeId=" + typeId +
+                ", className='" + className + '\'' +
+                '}';
+    }
+}
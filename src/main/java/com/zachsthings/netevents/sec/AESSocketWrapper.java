@@ -15,148 +15,503 @@
  */
 package com.zachsthings.netevents.sec;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
-import java.security.AlgorithmParameters;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.InvalidParameterSpecException;
+import java.security.SecureRandom;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Socket wrapper that provides an encrypted channel
+ * Socket wrapper that provides an encrypted channel.
+ * The passphrase is only stretched into a master key once, and each connection derives its own session keys from the master key
+ * and a random nonce sent by each side.
  */
 public class AESSocketWrapper implements SocketWrapper {
     private static final byte[] SALT = new byte[]{8, 12, 16, 84, 98, 93, 92, 23, 38, 3};
-    private static final int ITER_COUNT = 1024, KEY_LEN = 128;
+    private static final byte[] HKDF_SALT = "netevents".getBytes(StandardCharsets.UTF_8);
+    private static final int ITER_COUNT = 65536, KEY_LEN = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
     private final String passphrase;
+    private volatile Key masterKey; // HKDF pseudorandom key, derived from the passphrase on first use
 
 
     public AESSocketWrapper(String passphrase) {
         this.passphrase = passphrase;
     }
 
+    /**
+     * Get the master key, deriving it from the passphrase if this is the first call.
+     *
+     * @return The master key, used as the HKDF pseudorandom key
+     * @throws GeneralSecurityException if the key could not be derived
+     */
+    private Key getMasterKey() throws GeneralSecurityException {
+        Key key = masterKey;
+        if (key == null) {
+            synchronized (this) {
+                key = masterKey;
+                if (key == null) {
+                    SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+                    KeySpec spec = new PBEKeySpec(passphrase.toCharArray(), SALT, ITER_COUNT, KEY_LEN);
+                    byte[] stretched = factory.generateSecret(spec).getEncoded();
+                    // HKDF-Extract
+                    Mac mac = Mac.getInstance(CryptSocketChannel.MAC_ALGORITHM);
+                    mac.init(new SecretKeySpec(HKDF_SALT, CryptSocketChannel.MAC_ALGORITHM));
+                    key = masterKey = new SecretKeySpec(mac.doFinal(stretched), CryptSocketChannel.MAC_ALGORITHM);
+                }
+            }
+        }
+        return key;
+    }
+
     @Override
     public SocketChannel wrapSocket(SocketChannel chan) throws IOException {
         try {
-            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            KeySpec spec = new PBEKeySpec(passphrase.toCharArray(), SALT, ITER_COUNT, KEY_LEN);
-            SecretKey secretKey = factory.generateSecret(spec);
-            Key key = new SecretKeySpec(secretKey.getEncoded(), "AES");
-            AlgorithmParameters params = AlgorithmParameters.getInstance("AES");
-            params.init(new IvParameterSpec(new byte[16]));
-            return new CryptSocketChannel(chan, key, params);
-        } catch (NoSuchAlgorithmException
-                | InvalidKeySpecException
-                | NoSuchPaddingException
-                | InvalidKeyException
-                | InvalidAlgorithmParameterException
-                | InvalidParameterSpecException e) {
+            byte[] nonce = new byte[CryptSocketChannel.NONCE_LEN];
+            RANDOM.nextBytes(nonce);
+            return new CryptSocketChannel(chan, getMasterKey(), nonce);
+        } catch (GeneralSecurityException e) {
             throw new IOException(e);
         }
     }
 
+    /**
+     * Channel encrypting the stream of written bytes with AES-CTR, split into records authenticated with HMAC-SHA256.
+     *
+     * Each side starts by sending a random nonce. The keys and IV for each direction are derived with HKDF-Expand from the master key
+     * and both nonces, so every connection uses its own keys, and a recorded session can't be replayed.
+     * After the nonce, each direction is a series of records of {@code [int length][ciphertext][tag]}.
+     * The tag covers the record's sequence number, its length and its ciphertext,
+     * so records can't be altered, dropped, reordered or replayed without the receiver noticing.
+     *
+     * Since data is a stream, reads and writes don't need to line up, and scattering reads and gathering writes
+     * are decrypted and encrypted in place without copying into a temporary buffer first.
+     * Partially transferred records are buffered, so this channel may also be used in non-blocking mode:
+     * a read returns 0 until a complete record is available, and writes return 0 while a previous record is still being sent.
+     * Nothing can be written until the remote's nonce has been read. Blocking writes wait for it,
+     * and non-blocking writes return 0 while {@link #isWaitingForRead()}.
+     */
     private static class CryptSocketChannel extends WrappedSocketChannel {
-        private final Object readLock = new Object(),
-                writeLock = new Object();
-        private ByteBuffer readTmp;
+        static final String MAC_ALGORITHM = "HmacSHA256";
+        static final int NONCE_LEN = 16, TAG_LEN = 16, MAX_RECORD = 16 * 1024;
+        private static final int RECORD_OVERHEAD = 4 + TAG_LEN;
+        private static final int ENC_KEY_LEN = 16, MAC_KEY_LEN = 32, IV_LEN = 16;
+
+        // Not monitors, so blocked virtual threads don't pin their carrier
+        private final Lock readLock = new ReentrantLock(),
+                writeLock = new ReentrantLock();
+        private final Condition keysReady = writeLock.newCondition();
+        private final Key masterKey;
+        private final byte[] localNonce;
         private final Cipher enc, dec;
+        private final Mac encMac, decMac;
+        // Under readLock
+        private final ByteBuffer readCipher = ByteBuffer.allocateDirect(NONCE_LEN + RECORD_OVERHEAD + MAX_RECORD), // Received ciphertext not yet decrypted
+                readPlain = ByteBuffer.allocateDirect(MAX_RECORD), // Decrypted data not yet read
+                readMacHeader = ByteBuffer.allocate(12);
+        private final byte[] readTag = new byte[32];
+        private final ByteBuffer[] readSingle = new ByteBuffer[1];
+        private long readSeq;
+        private boolean readKeysDerived, readEof;
+        // Under writeLock
+        private final ByteBuffer writeCipher = ByteBuffer.allocateDirect(RECORD_OVERHEAD + MAX_RECORD), // Ciphertext not yet written
+                writeMacHeader = ByteBuffer.allocate(12);
+        private final byte[] writeTag = new byte[32];
+        private final ByteBuffer[] writeSingle = new ByteBuffer[1];
+        private long writeSeq;
+        private volatile boolean writeKeysDerived;
 
-        public CryptSocketChannel(SocketChannel wrappee, Key k, AlgorithmParameters params) throws InvalidKeyException, NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+        /**
+         * Create a new encrypted channel, sending {@code nonce} to the remote.
+         * {@code wrappee} must still be in blocking mode.
+         */
+        public CryptSocketChannel(SocketChannel wrappee, Key masterKey, byte[] nonce) throws IOException, NoSuchPaddingException, NoSuchAlgorithmException {
             super(wrappee);
-            enc = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            enc.init(Cipher.ENCRYPT_MODE, k, params);
-            dec = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            dec.init(Cipher.DECRYPT_MODE, k, params);
+            this.masterKey = masterKey;
+            this.localNonce = nonce;
+            enc = Cipher.getInstance("AES/CTR/NoPadding");
+            dec = Cipher.getInstance("AES/CTR/NoPadding");
+            encMac = Mac.getInstance(MAC_ALGORITHM);
+            decMac = Mac.getInstance(MAC_ALGORITHM);
+            readPlain.limit(0);
+            writeCipher.limit(0);
+
+            final ByteBuffer nonceBuf = ByteBuffer.wrap(nonce);
+            while (nonceBuf.hasRemaining()) {
+                super.write(nonceBuf);
+            }
         }
 
         /**
-         * Only call under readLock
+         * HKDF-Expand the master key into the keys and IV for one direction
          *
-         * @param capacity required capacity
-         * @return adjusted readTmp buffer
+         * @param senderNonce Nonce of the side encrypting this direction
+         * @param receiverNonce Nonce of the side decrypting this direction
+         * @param cipherMode Mode to initialize {@code cipher} in
+         * @param cipher The cipher to initialize
+         * @param mac The mac to initialize
+         * @throws IOException if the keys could not be derived
          */
-        private ByteBuffer adjustReadTmp(int capacity) {
-            if (readTmp == null || readTmp.capacity() < capacity
-                            || (capacity > 16 && readTmp.capacity() > (4 * capacity))) { // If it's not a small buffer and readTmp is pretty large, lets shrink it
-                        readTmp = ByteBuffer.allocate(capacity);
-                    }
-            return readTmp;
+        private void deriveKeys(byte[] senderNonce, byte[] receiverNonce, int cipherMode, Cipher cipher, Mac mac) throws IOException {
+            try {
+                final Mac hkdf = Mac.getInstance(MAC_ALGORITHM);
+                hkdf.init(masterKey);
+                final byte[] okm = new byte[ENC_KEY_LEN + MAC_KEY_LEN + IV_LEN];
+                byte[] block = new byte[0];
+                for (int i = 0, off = 0; off < okm.length; ++i) {
+                    hkdf.update(block);
+                    hkdf.update(senderNonce);
+                    hkdf.update(receiverNonce);
+                    hkdf.update((byte) (i + 1));
+                    block = hkdf.doFinal();
+                    System.arraycopy(block, 0, okm, off, Math.min(block.length, okm.length - off));
+                    off += block.length;
+                }
+                cipher.init(cipherMode, new SecretKeySpec(okm, 0, ENC_KEY_LEN, "AES"), new IvParameterSpec(okm, ENC_KEY_LEN + MAC_KEY_LEN, IV_LEN));
+                mac.init(new SecretKeySpec(okm, ENC_KEY_LEN, MAC_KEY_LEN, MAC_ALGORITHM));
+            } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * Derive the keys for both directions once the remote's nonce has been received.
+         * Only call under readLock.
+         */
+        private void receivedNonce(byte[] remoteNonce) throws IOException {
+            if (Arrays.equals(remoteNonce, localNonce)) {
+                throw new IOException("Remote sent our own nonce back, is the connection being reflected?");
+            }
+            deriveKeys(remoteNonce, localNonce, Cipher.DECRYPT_MODE, dec, decMac);
+            readKeysDerived = true;
+            writeLock.lock();
+            try {
+                deriveKeys(localNonce, remoteNonce, Cipher.ENCRYPT_MODE, enc, encMac);
+                writeKeysDerived = true;
+                keysReady.signalAll();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean isWaitingForRead() {
+            return !writeKeysDerived;
         }
 
         @Override
         public int read(ByteBuffer dst) throws IOException {
-            int startIdx = dst.position();
-            ByteBuffer src = ByteBuffer.allocate(paddedLen(dst));
-            int read = super.read(src);
-            if (read <= 0) { // Nothing or closed channel
-                return read;
+            readLock.lock();
+            try {
+                readSingle[0] = dst;
+                return (int) read(readSingle, 0, 1);
+            } finally {
+                readSingle[0] = null;
+                readLock.unlock();
             }
+        }
 
+        /**
+         * Decrypt into each buffer in turn. Records are decrypted straight into the buffer being filled when they fit.
+         */
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            checkBounds(dsts, offset, length);
+            readLock.lock();
+            try {
+                final int end = offset + length;
+                long read = 0;
+                int i = offset;
+                while (true) {
+                    while (i < end && !dsts[i].hasRemaining()) {
+                        ++i;
+                    }
+                    if (i == end) {
+                        break;
+                    }
+                    if (readPlain.hasRemaining()) {
+                        read += transfer(readPlain, dsts[i]);
+                    } else {
+                        final int startIdx = dsts[i].position();
+                        if (openRecord(dsts[i])) {
+                            read += dsts[i].position() - startIdx;
+                        } else {
+                            // Only wait for more data from the network if there's nothing to return yet
+                            if (readEof || read != 0) {
+                                break;
+                            }
+                            final int received = super.read(readCipher);
+                            if (received == -1) {
+                                readEof = true;
+                            } else if (received == 0) {
+                                break;
+                            }
+                        }
+                    }
+                }
+                return readEof && read == 0 ? -1 : read;
+            } finally {
+                readLock.unlock();
+            }
+        }
+
+        /**
+         * Authenticate and decrypt the first complete record in {@link #readCipher}, if any.
+         * The record is decrypted straight into {@code dst} if it fits, otherwise into {@link #readPlain}.
+         * Only call under readLock, with readPlain empty.
+         *
+         * @param dst The buffer being read into
+         * @return true if a record was opened
+         * @throws IOException if the record is invalid
+         */
+        private boolean openRecord(ByteBuffer dst) throws IOException {
+            final ByteBuffer src = readCipher;
             src.flip();
-            synchronized (readLock) {
+            try {
+                if (!readKeysDerived) {
+                    if (src.remaining() < NONCE_LEN) {
+                        return false;
+                    }
+                    final byte[] remoteNonce = new byte[NONCE_LEN];
+                    src.get(remoteNonce);
+                    receivedNonce(remoteNonce);
+                }
+                if (src.remaining() < 4) {
+                    return false;
+                }
+                final int len = src.getInt(src.position());
+                if (len <= 0 || len > MAX_RECORD) {
+                    throw new IOException("Invalid record length " + len + " received from remote! Do passphrases match?");
+                }
+                if (src.remaining() < len + RECORD_OVERHEAD) {
+                    return false;
+                }
+                src.position(src.position() + 4);
+                final int ciphertextEnd = src.position() + len;
+
+                // Verify before decrypting anything
+                readMacHeader.clear();
+                readMacHeader.putLong(readSeq++).putInt(len).flip();
+                decMac.update(readMacHeader);
+                final ByteBuffer ciphertext = src.duplicate();
+                ciphertext.limit(ciphertextEnd);
+                decMac.update(ciphertext);
                 try {
-                    adjustReadTmp(src.capacity());
+                    decMac.doFinal(readTag, 0);
+                } catch (ShortBufferException e) {
+                    throw new IOException(e);
+                }
+                int diff = 0;
+                for (int i = 0; i < TAG_LEN; ++i) {
+                    diff |= readTag[i] ^ src.get(ciphertextEnd + i);
+                }
+                if (diff != 0) {
+                    throw new IOException("Invalid data received from remote! Do passphrases match?");
+                }
 
-                    try {
-                        dec.doFinal(src, readTmp);
-                    } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
-                        // If one of these happens, it's probably an incorrect passphrase
-                        throw new IOException("Invalid data received from remote! Do passphrases match?", e);
-                    }
-                    readTmp.flip();
-                    dst.put(readTmp);
-                } finally {
-                    if (readTmp != null) {
-                        readTmp.clear();
+                final int srcLimit = src.limit();
+                src.limit(ciphertextEnd);
+                try {
+                    if (dst.remaining() >= len) {
+                        dec.update(src, dst);
+                    } else {
+                        readPlain.clear();
+                        dec.update(src, readPlain);
+                        readPlain.flip();
                     }
+                } catch (ShortBufferException e) {
+                    throw new IOException(e);
                 }
+                src.limit(srcLimit);
+                src.position(ciphertextEnd + TAG_LEN);
+                return true;
+            } finally {
+                src.compact();
             }
-            return dst.position() - startIdx;
         }
 
         @Override
-        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
-            throw new UnsupportedOperationException("Not supported yet.");
-            //return super.read(dsts, offset, length);
+        public int write(ByteBuffer src) throws IOException {
+            writeLock.lock();
+            try {
+                writeSingle[0] = src;
+                return (int) write(writeSingle, 0, 1);
+            } finally {
+                writeSingle[0] = null;
+                writeLock.unlock();
+            }
         }
 
         @Override
-        public int write(ByteBuffer src) throws IOException {
-            ByteBuffer dst = ByteBuffer.allocate(enc.getOutputSize(src.limit()));
+        public boolean flush() throws IOException {
+            writeLock.lock();
             try {
-                synchronized (writeLock) {
-                    enc.doFinal(src, dst);
-                }
-            } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
-                throw new IOException(e);
+                return flushPending();
+            } finally {
+                writeLock.unlock();
             }
-            dst.flip();
-            return super.write(dst);
         }
 
+        /**
+         * Only call under writeLock
+         *
+         * @return true if no encrypted data remains to be written
+         * @throws IOException if an error occurs while writing
+         */
+        private boolean flushPending() throws IOException {
+            if (writeCipher.hasRemaining()) {
+                super.write(writeCipher);
+            }
+            return !writeCipher.hasRemaining();
+        }
+
+        /**
+         * Encrypt the given buffers into records of up to {@link #MAX_RECORD} bytes, sending each record as it is sealed.
+         * Stops early once the wrapped channel can't accept a whole record.
+         */
         @Override
         public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
-            throw new UnsupportedOperationException("Not supported yet.");
-            //return super.write(srcs, offset, length);
+            checkBounds(srcs, offset, length);
+            writeLock.lock();
+            try {
+                if (!awaitKeys()) {
+                    return 0;
+                }
+                long written = 0;
+                while (flushPending()) {
+                    int remaining = 0;
+                    for (int i = offset; i < offset + length && remaining < MAX_RECORD; ++i) {
+                        remaining += srcs[i].remaining();
+                    }
+                    if (remaining == 0) {
+                        break;
+                    }
+                    final int len = Math.min(remaining, MAX_RECORD);
+                    sealRecord(srcs, offset, length, len);
+                    written += len;
+                }
+                return written;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Wait for the write keys to be derived if this channel is blocking.
+         * Only call under writeLock.
+         *
+         * @return true if the write keys are available
+         * @throws IOException if the channel is closed or the thread is interrupted while waiting
+         */
+        private boolean awaitKeys() throws IOException {
+            if (!getWrappee().isBlocking()) {
+                return writeKeysDerived;
+            }
+            while (!writeKeysDerived) {
+                if (!isOpen()) {
+                    throw new ClosedChannelException();
+                }
+                try {
+                    keysReady.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the remote's nonce");
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected void implCloseSelectableChannel() throws IOException {
+            try {
+                super.implCloseSelectableChannel();
+            } finally {
+                writeLock.lock();
+                try {
+                    keysReady.signalAll(); // Wake up writers waiting for keys
+                } finally {
+                    writeLock.unlock();
+                }
+            }
         }
 
-        private static int paddedLen(ByteBuffer test) {
-            return test.capacity() + (16 - test.capacity() % 16);
+        /**
+         * Encrypt the next {@code len} bytes of {@code srcs} into {@link #writeCipher} as one record.
+         * Only call under writeLock, with writeCipher empty.
+         */
+        private void sealRecord(ByteBuffer[] srcs, int offset, int length, int len) throws IOException {
+            final ByteBuffer out = writeCipher;
+            out.clear();
+            out.putInt(len);
+            final int ciphertextStart = out.position();
+            try {
+                int left = len;
+                for (int i = offset; i < offset + length && left > 0; ++i) {
+                    final ByteBuffer src = srcs[i];
+                    if (!src.hasRemaining()) {
+                        continue;
+                    }
+                    final int srcLimit = src.limit();
+                    if (src.remaining() > left) {
+                        src.limit(src.position() + left);
+                    }
+                    left -= src.remaining();
+                    enc.update(src, out);
+                    src.limit(srcLimit);
+                }
+
+                writeMacHeader.clear();
+                writeMacHeader.putLong(writeSeq++).putInt(len).flip();
+                encMac.update(writeMacHeader);
+                final ByteBuffer ciphertext = out.duplicate();
+                ciphertext.flip();
+                ciphertext.position(ciphertextStart);
+                encMac.update(ciphertext);
+                encMac.doFinal(writeTag, 0);
+            } catch (ShortBufferException e) {
+                throw new IOException(e);
+            }
+            out.put(writeTag, 0, TAG_LEN);
+            out.flip();
+        }
+
+        private static int transfer(ByteBuffer src, ByteBuffer dst) {
+            final int len = Math.min(src.remaining(), dst.remaining());
+            if (len == src.remaining()) {
+                dst.put(src);
+            } else {
+                final int srcLimit = src.limit();
+                src.limit(src.position() + len);
+                dst.put(src);
+                src.limit(srcLimit);
+            }
+            return len;
+        }
+
+        private static void checkBounds(ByteBuffer[] bufs, int offset, int length) {
+            if (offset < 0 || length < 0 || offset > bufs.length - length) {
+                throw new IndexOutOfBoundsException();
+            }
         }
     }
 
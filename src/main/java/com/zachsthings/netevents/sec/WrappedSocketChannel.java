@@ -35,6 +35,13 @@ public class WrappedSocketChannel extends SocketChannel {
         this.wrappee = wrappee;
     }
 
+    /**
+     * @return The channel this channel wraps
+     */
+    protected SocketChannel getWrappee() {
+        return wrappee;
+    }
+
     @Override
     public SocketChannel bind(SocketAddress local) throws IOException {
         return wrappee.bind(local);
@@ -120,6 +127,27 @@ public class WrappedSocketChannel extends SocketChannel {
         return wrappee.write(srcs, offset, length);
     }
 
+    /**
+     * Attempt to write out any data buffered by this wrapper that has not yet reached the wrapped channel.
+     * Subclasses that buffer output must override this so non-blocking users can finish their writes.
+     *
+     * @return true if no buffered data remains
+     * @throws IOException if an error occurs while writing
+     */
+    public boolean flush() throws IOException {
+        return true;
+    }
+
+    /**
+     * Whether buffered output can't be written until more data has been read, such as while keys are being exchanged.
+     * Non-blocking users should wait for the wrapped channel to become readable instead of writable while this is true.
+     *
+     * @return true if writing is waiting on a read
+     */
+    public boolean isWaitingForRead() {
+        return false;
+    }
+
     @Override
     protected void implCloseSelectableChannel() throws IOException {
         wrappee.close();
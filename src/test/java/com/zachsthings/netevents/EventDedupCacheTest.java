@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventDedupCacheTest {
+    private static List<UUID> randomIds(int count) {
+        final List<UUID> ret = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            ret.add(UUID.randomUUID());
+        }
+        return ret;
+    }
+
+    @Test
+    public void testDuplicatesDetected() {
+        final EventDedupCache cache = new EventDedupCache(100, 0, TimeUnit.SECONDS);
+        final UUID id = UUID.randomUUID();
+        assertTrue(cache.markProcessed(id));
+        assertFalse(cache.markProcessed(id));
+        assertTrue(cache.markProcessed(UUID.randomUUID()));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testOldestEvictedWhenFull() {
+        final EventDedupCache cache = new EventDedupCache(10, 0, TimeUnit.SECONDS);
+        final List<UUID> ids = randomIds(11);
+        for (UUID id : ids) {
+            assertTrue(cache.markProcessed(id));
+        }
+        assertEquals(10, cache.size());
+        for (UUID id : ids.subList(1, ids.size())) {
+            assertFalse("Recent id was evicted", cache.markProcessed(id));
+        }
+        assertTrue("Oldest id was not evicted", cache.markProcessed(ids.get(0)));
+    }
+
+    @Test
+    public void testLookupsSurviveManyEvictions() {
+        // Small enough for a single segment, so eviction order is exact
+        final int capacity = 300;
+        final EventDedupCache cache = new EventDedupCache(capacity, 0, TimeUnit.SECONDS);
+        final List<UUID> ids = randomIds(50 * capacity);
+        for (UUID id : ids) {
+            assertTrue(cache.markProcessed(id));
+        }
+        assertEquals(capacity, cache.size());
+        for (UUID id : ids.subList(ids.size() - capacity, ids.size())) {
+            assertFalse(cache.markProcessed(id));
+        }
+        assertTrue(cache.markProcessed(ids.get(ids.size() - capacity - 1)));
+    }
+
+    @Test
+    public void testSegmentedCapacityBounded() {
+        final EventDedupCache cache = new EventDedupCache(5000, 0, TimeUnit.SECONDS);
+        for (UUID id : randomIds(20000)) {
+            cache.markProcessed(id);
+        }
+        assertEquals(5000, cache.size());
+    }
+
+    @Test
+    public void testEntriesExpire() throws InterruptedException {
+        final EventDedupCache cache = new EventDedupCache(100, 50, TimeUnit.MILLISECONDS);
+        final UUID id = UUID.randomUUID();
+        assertTrue(cache.markProcessed(id));
+        Thread.sleep(100);
+        assertTrue(cache.markProcessed(id));
+        assertEquals(1, cache.size());
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class FrameCompressorTest {
+    private static final int MAX_SIZE = 8 * 1024 * 1024;
+    private final BufferPool pool = new BufferPool(false, 4);
+    private final FrameCompressor writer = new FrameCompressor(Deflater.DEFAULT_COMPRESSION, 64),
+            reader = new FrameCompressor(Deflater.DEFAULT_COMPRESSION, 64);
+
+    private static byte[] repetitive(int len) {
+        final byte[] base = "org.bukkit.event.player.PlayerJoinEvent ".getBytes(StandardCharsets.UTF_8);
+        final byte[] ret = new byte[len];
+        for (int i = 0; i < len; ++i) {
+            ret[i] = base[i % base.length];
+        }
+        return ret;
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        final byte[] ret = new byte[buf.remaining()];
+        buf.duplicate().get(ret);
+        return ret;
+    }
+
+    private byte[] roundTrip(byte[] payload) throws IOException {
+        writer.reset();
+        final ByteBuffer in = ByteBuffer.wrap(payload);
+        final ByteBuffer compressed = writer.compress(in);
+        assertNotNull(compressed);
+        assertEquals("Payload position changed", 0, in.position());
+        final ByteBuffer out = reader.decompress(compressed.duplicate(), pool, MAX_SIZE);
+        try {
+            return toArray(out);
+        } finally {
+            pool.release(out);
+        }
+    }
+
+    @Test
+    public void testSmallPayloadsNotCompressed() {
+        assertNull(writer.compress(ByteBuffer.wrap(new byte[63])));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final byte[] payload = repetitive(1000);
+        assertArrayEquals(payload, roundTrip(payload));
+    }
+
+    @Test
+    public void testRepeatedContentSharesStream() throws IOException {
+        final byte[] payload = repetitive(1000);
+        writer.reset();
+        final int first = writer.compress(ByteBuffer.wrap(payload)).remaining();
+        final ByteBuffer second = writer.compress(ByteBuffer.wrap(payload));
+        assertTrue("Second frame was not smaller: " + first + " then " + second.remaining(), second.remaining() < first);
+    }
+
+    @Test
+    public void testSeveralFramesInOneBatch() throws IOException {
+        final Random random = new Random(3);
+        final byte[][] payloads = new byte[20][];
+        final ByteBuffer[] compressed = new ByteBuffer[payloads.length];
+        writer.reset();
+        for (int i = 0; i < payloads.length; ++i) {
+            payloads[i] = repetitive(64 + random.nextInt(5000));
+            compressed[i] = writer.compress(ByteBuffer.wrap(payloads[i]));
+        }
+        for (int i = 0; i < payloads.length; ++i) {
+            assertArrayEquals(payloads[i], toArray(reader.decompress(compressed[i], pool, MAX_SIZE)));
+        }
+    }
+
+    @Test
+    public void testSmallFramesAfterLargeFrame() throws IOException {
+        final Random random = new Random(5);
+        final byte[] large = new byte[1024 * 1024];
+        random.nextBytes(large); // Incompressible, so the output needs more room than the input
+        final byte[] small = repetitive(500);
+        assertArrayEquals(small, roundTrip(small));
+        assertArrayEquals(large, roundTrip(large));
+        assertArrayEquals(small, roundTrip(small));
+        assertArrayEquals(large, roundTrip(large));
+    }
+
+    @Test(expected = IOException.class)
+    public void testOversizedFrameRejected() throws IOException {
+        writer.reset();
+        reader.decompress(writer.compress(ByteBuffer.wrap(repetitive(10000))), pool, 9999);
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongLengthRejected() throws IOException {
+        writer.reset();
+        final ByteBuffer compressed = writer.compress(ByteBuffer.wrap(repetitive(1000)));
+        compressed.putInt(0, 999);
+        reader.decompress(compressed, pool, MAX_SIZE);
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MpscQueueTest {
+    @Test
+    public void testFifo() {
+        final MpscQueue<Integer> queue = new MpscQueue<>();
+        assertNull(queue.poll());
+        for (int i = 0; i < 10; ++i) {
+            queue.offer(i);
+        }
+        assertEquals(10, queue.size());
+        for (int i = 0; i < 10; ++i) {
+            assertEquals(i, (int) queue.poll());
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullRejected() {
+        new MpscQueue<Object>().offer(null);
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        final int producers = 4, perProducer = 100000;
+        final MpscQueue<long[]> queue = new MpscQueue<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; ++p) {
+            final int producer = p;
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; ++i) {
+                        queue.offer(new long[]{producer, i});
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+
+        final int[] next = new int[producers];
+        int received = 0;
+        final long deadline = System.nanoTime() + 30L * 1000 * 1000 * 1000;
+        while (received < producers * perProducer) {
+            final long[] value = queue.poll();
+            if (value == null) {
+                assertTrue("Timed out waiting for elements", System.nanoTime() < deadline);
+                Thread.yield();
+                continue;
+            }
+            assertEquals("Elements from one producer out of order", next[(int) value[0]], value[1]);
+            ++next[(int) value[0]];
+            ++received;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+}
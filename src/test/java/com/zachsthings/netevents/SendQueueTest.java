@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents;
+
+import com.zachsthings.netevents.packet.ServerIDPacket;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class SendQueueTest {
+    private static SendQueue.Entry entry() throws IOException {
+        return SendQueue.Entry.retained(new ServerIDPacket(UUID.randomUUID()), false);
+    }
+
+    @Test
+    public void testBlockPolicyDropsWhenNotAllowedToBlock() throws Exception {
+        final AtomicLong dropped = new AtomicLong();
+        final SendQueue queue = new SendQueue(1, Long.MAX_VALUE, NetEventsConfig.OverflowPolicy.BLOCK, dropped);
+        assertEquals(WriteResult.QUEUED, queue.offer(entry(), false));
+        assertEquals(WriteResult.DROPPED, queue.offer(entry(), false));
+        assertEquals(1, dropped.get());
+    }
+
+    @Test
+    public void testBlockPolicyWaitsForRoom() throws Exception {
+        final SendQueue queue = new SendQueue(1, Long.MAX_VALUE, NetEventsConfig.OverflowPolicy.BLOCK, new AtomicLong());
+        queue.offer(entry(), true);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<WriteResult> blocked = executor.submit(new Callable<WriteResult>() {
+                @Override
+                public WriteResult call() throws Exception {
+                    return queue.offer(entry(), true);
+                }
+            });
+            try {
+                blocked.get(100, TimeUnit.MILLISECONDS);
+                fail("Offer to a full queue returned without waiting");
+            } catch (TimeoutException expected) {
+            }
+            assertNotNull(queue.poll());
+            assertEquals(WriteResult.QUEUED, blocked.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRequiredEntriesIgnoreLimits() throws Exception {
+        final SendQueue queue = new SendQueue(1, Long.MAX_VALUE, NetEventsConfig.OverflowPolicy.BLOCK, new AtomicLong());
+        queue.offer(entry(), false);
+        assertEquals(WriteResult.QUEUED, queue.offer(SendQueue.Entry.retained(new ServerIDPacket(UUID.randomUUID()), false, true), false));
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BuffersTest {
+    private static final int[] VAR_INTS = {0, 1, 127, 128, 255, 16383, 16384, 2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE, -1};
+
+    @Test
+    public void testVarIntRoundTrip() throws IOException {
+        for (int value : VAR_INTS) {
+            final ByteBuffer buf = ByteBuffer.allocate(5);
+            Buffers.putVarInt(buf, value);
+            assertEquals("Size of " + value, Buffers.varIntSize(value), buf.position());
+            buf.flip();
+            assertEquals(value, Buffers.getVarInt(buf));
+            assertFalse(buf.hasRemaining());
+        }
+    }
+
+    @Test
+    public void testVarIntSizes() {
+        assertEquals(1, Buffers.varIntSize(0));
+        assertEquals(1, Buffers.varIntSize(127));
+        assertEquals(2, Buffers.varIntSize(128));
+        assertEquals(3, Buffers.varIntSize(16384));
+        assertEquals(5, Buffers.varIntSize(Integer.MAX_VALUE));
+    }
+
+    @Test(expected = IOException.class)
+    public void testOverlongVarIntRejected() throws IOException {
+        Buffers.getVarInt(ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1}));
+    }
+
+    @Test
+    public void testStringRoundTrip() throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(64);
+        Buffers.putString(buf, "h\u00e9llo");
+        Buffers.putString(buf, null);
+        Buffers.putString(buf, "");
+        buf.flip();
+        assertEquals("h\u00e9llo", Buffers.getString(buf));
+        assertNull(Buffers.getString(buf));
+        assertEquals("", Buffers.getString(buf));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedStringRejected() throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putInt(100).flip();
+        Buffers.getString(buf);
+    }
+
+    @Test
+    public void testUUIDRoundTrip() {
+        final UUID id = UUID.randomUUID();
+        final ByteBuffer buf = ByteBuffer.allocate(40);
+        Buffers.putUUID(buf, id);
+        Buffers.putUUID(buf, null);
+        buf.flip();
+        assertEquals(id, Buffers.getUUID(buf));
+        assertNull(Buffers.getUUID(buf));
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.codec;
+
+import org.bukkit.event.Event;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class NetEventProcessorTest {
+    private static final String HANDLERS = "    public org.bukkit.event.HandlerList getHandlers() { return null; }\n";
+    private Path outDir;
+    private DiagnosticCollector<JavaFileObject> diagnostics;
+
+    @Before
+    public void setUp() throws IOException {
+        outDir = Files.createTempDirectory("netevents-processor");
+        diagnostics = new DiagnosticCollector<>();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.walkFileTree(outDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Compile a source file with the annotation processor.
+     *
+     * @return Whether compilation succeeded
+     */
+    private boolean compile(String className, final String source) throws IOException {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertNotNull("No system Java compiler, tests must run on a JDK", compiler);
+        final JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        try (StandardJavaFileManager files = compiler.getStandardFileManager(diagnostics, null, null)) {
+            return compiler.getTask(null, files, diagnostics,
+                    Arrays.asList("-classpath", System.getProperty("java.class.path"), "-d", outDir.toString(), "-s", outDir.toString(),
+                            "-processor", NetEventProcessor.class.getName()),
+                    null, Collections.singletonList(file)).call();
+        }
+    }
+
+    private void assertError(String message) {
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR && diagnostic.getMessage(null).contains(message)) {
+                return;
+            }
+        }
+        fail("No error containing \"" + message + "\" in " + diagnostics.getDiagnostics());
+    }
+
+    private static void set(Object obj, String field, Object value) throws ReflectiveOperationException {
+        obj.getClass().getField(field).set(obj, value);
+    }
+
+    private static Object get(Object obj, String field) throws ReflectiveOperationException {
+        final Field f = obj.getClass().getField(field);
+        return f.get(obj);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGeneratedCodecRoundTrip() throws Exception {
+        assertTrue(diagnostics.getDiagnostics().toString(), compile("sample.SampleEvent", "package sample;\n"
+                + "@com.zachsthings.netevents.codec.NetEvent\n"
+                + "public class SampleEvent extends org.bukkit.event.Event {\n"
+                + "    public enum Kind { A, B }\n"
+                + "    public int count;\n"
+                + "    public long time;\n"
+                + "    public boolean flag;\n"
+                + "    public String name;\n"
+                + "    public java.util.UUID id;\n"
+                + "    public Kind kind;\n"
+                + "    public Integer boxed;\n"
+                + "    public Double missing;\n"
+                + "    public byte[] data;\n"
+                + "    public transient String local;\n"
+                + HANDLERS
+                + "}\n"));
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{outDir.toUri().toURL()}, getClass().getClassLoader())) {
+            final Class<? extends Event> type = (Class<? extends Event>) loader.loadClass("sample.SampleEvent");
+            final EventCodec<Event> codec = (EventCodec<Event>) new EventCodecRegistry().getCodec(type);
+            assertNotNull("Generated codec not found", codec);
+
+            final Event event = type.newInstance();
+            final UUID id = UUID.randomUUID();
+            set(event, "count", 42);
+            set(event, "time", Long.MAX_VALUE);
+            set(event, "flag", true);
+            set(event, "name", "sample");
+            set(event, "id", id);
+            set(event, "kind", loader.loadClass("sample.SampleEvent$Kind").getEnumConstants()[1]);
+            set(event, "boxed", 7);
+            set(event, "data", new byte[]{1, 2, 3});
+            set(event, "local", "not sent");
+
+            final ByteBuffer buf = ByteBuffer.allocate(256);
+            codec.encode(event, buf);
+            buf.flip();
+            final Event decoded = codec.decode(buf);
+            assertFalse(buf.hasRemaining());
+
+            assertEquals(42, get(decoded, "count"));
+            assertEquals(Long.MAX_VALUE, get(decoded, "time"));
+            assertEquals(true, get(decoded, "flag"));
+            assertEquals("sample", get(decoded, "name"));
+            assertEquals(id, get(decoded, "id"));
+            assertEquals("B", String.valueOf(get(decoded, "kind")));
+            assertEquals(7, get(decoded, "boxed"));
+            assertNull(get(decoded, "missing"));
+            assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) get(decoded, "data"));
+            assertNull(get(decoded, "local"));
+        }
+    }
+
+    @Test
+    public void testPrivateFieldRejected() throws IOException {
+        assertFalse(compile("sample.PrivateFieldEvent", "package sample;\n"
+                + "@com.zachsthings.netevents.codec.NetEvent\n"
+                + "public class PrivateFieldEvent extends org.bukkit.event.Event {\n"
+                + "    private int count;\n"
+                + HANDLERS
+                + "}\n"));
+        assertError("must not be private or final");
+    }
+
+    @Test
+    public void testUnsupportedFieldRejected() throws IOException {
+        assertFalse(compile("sample.ListEvent", "package sample;\n"
+                + "@com.zachsthings.netevents.codec.NetEvent\n"
+                + "public class ListEvent extends org.bukkit.event.Event {\n"
+                + "    public java.util.List<String> names;\n"
+                + HANDLERS
+                + "}\n"));
+        assertError("Unsupported field type");
+    }
+
+    @Test
+    public void testNonEventRejected() throws IOException {
+        assertFalse(compile("sample.NotAnEvent", "package sample;\n"
+                + "@com.zachsthings.netevents.codec.NetEvent\n"
+                + "public class NotAnEvent {\n"
+                + "}\n"));
+        assertError("must extend org.bukkit.event.Event");
+    }
+
+    @Test
+    public void testMissingConstructorRejected() throws IOException {
+        assertFalse(compile("sample.NoConstructorEvent", "package sample;\n"
+                + "@com.zachsthings.netevents.codec.NetEvent\n"
+                + "public class NoConstructorEvent extends org.bukkit.event.Event {\n"
+                + "    public NoConstructorEvent(int count) {\n"
+                + "    }\n"
+                + HANDLERS
+                + "}\n"));
+        assertError("no-argument constructor");
+    }
+}
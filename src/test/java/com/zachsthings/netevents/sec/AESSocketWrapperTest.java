@@ -0,0 +1,285 @@
+/**
+ * Copyright (C) 2014 zml (netevents@zachsthings.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.zachsthings.netevents.sec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AESSocketWrapperTest {
+    private static final int NONCE_LEN = 16, TAG_LEN = 16;
+    private static final AESSocketWrapper WRAPPER = new AESSocketWrapper("passphrase"); // Shared so the master key is only derived once
+    private ServerSocketChannel server;
+    private final List<SocketChannel> opened = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SocketChannel chan : opened) {
+            chan.close();
+        }
+        server.close();
+    }
+
+    /**
+     * @return Both ends of a new loopback connection
+     */
+    private SocketChannel[] connect() throws IOException {
+        final SocketChannel client = SocketChannel.open(server.getLocalAddress());
+        final SocketChannel accepted = server.accept();
+        opened.add(client);
+        opened.add(accepted);
+        return new SocketChannel[]{client, accepted};
+    }
+
+    private SocketChannel wrap(AESSocketWrapper wrapper, SocketChannel chan) throws IOException {
+        final SocketChannel ret = wrapper.wrapSocket(chan);
+        opened.add(ret);
+        return ret;
+    }
+
+    /**
+     * Read the remote's nonce, so writes don't wait for a reader. Must be called before any data is sent to {@code chan}.
+     */
+    private static void awaitNonce(SocketChannel chan) throws IOException {
+        chan.configureBlocking(false);
+        while (((WrappedSocketChannel) chan).isWaitingForRead()) {
+            assertEquals(0, chan.read(ByteBuffer.allocate(1)));
+            Thread.yield();
+        }
+        chan.configureBlocking(true);
+    }
+
+    private static byte[] readFully(SocketChannel chan, int len) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining()) {
+            if (chan.read(buf) == -1) {
+                throw new IOException("Unexpected end of stream");
+            }
+        }
+        return buf.array();
+    }
+
+    private static void writeFully(SocketChannel chan, byte[] data) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            chan.write(buf);
+        }
+    }
+
+    /**
+     * An encrypted client and server connected through raw sockets, so the test can see and change what is sent between them.
+     * The nonces have already been passed on, and the client is non-blocking.
+     */
+    private class Intercepted {
+        private final SocketChannel client, server, toClient, toServer;
+        private final byte[] clientNonce, serverNonce;
+
+        private Intercepted() throws IOException {
+            final SocketChannel[] clientSide = connect(), serverSide = connect();
+            toClient = clientSide[1];
+            toServer = serverSide[0];
+            client = wrap(WRAPPER, clientSide[0]);
+            server = wrap(WRAPPER, serverSide[1]);
+            clientNonce = readFully(toClient, NONCE_LEN);
+            serverNonce = readFully(toServer, NONCE_LEN);
+            writeFully(toServer, clientNonce);
+            writeFully(toClient, serverNonce);
+            awaitNonce(client);
+            client.configureBlocking(false);
+        }
+
+        /**
+         * Write a message from the client, and capture the record it is sent as.
+         */
+        private byte[] sendFromClient(byte[] message) throws IOException {
+            final ByteBuffer buf = ByteBuffer.wrap(message);
+            while (buf.hasRemaining()) {
+                client.write(buf);
+            }
+            while (!((WrappedSocketChannel) client).flush()) {
+                Thread.yield();
+            }
+            return readFully(toClient, 4 + message.length + TAG_LEN);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final SocketChannel[] raw = connect();
+        final SocketChannel a = wrap(WRAPPER, raw[0]), b = wrap(WRAPPER, raw[1]);
+        awaitNonce(a);
+        awaitNonce(b);
+        final byte[] hello = "hello".getBytes(StandardCharsets.UTF_8), reply = "hi there".getBytes(StandardCharsets.UTF_8);
+
+        writeFully(a, hello);
+        assertArrayEquals(hello, readFully(b, hello.length));
+        writeFully(b, reply);
+        assertArrayEquals(reply, readFully(a, reply.length));
+    }
+
+    @Test
+    public void testCiphertextDiffersFromPlaintext() throws IOException {
+        final Intercepted conn = new Intercepted();
+        final byte[] message = "a message that should not be visible".getBytes(StandardCharsets.UTF_8);
+        final byte[] record = conn.sendFromClient(message);
+        assertEquals(message.length, ByteBuffer.wrap(record).getInt());
+        assertFalse(Arrays.equals(message, Arrays.copyOfRange(record, 4, 4 + message.length)));
+
+        writeFully(conn.toServer, record);
+        assertArrayEquals(message, readFully(conn.server, message.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTamperedCiphertextRejected() throws IOException {
+        final Intercepted conn = new Intercepted();
+        final byte[] record = conn.sendFromClient("pay 10 coins".getBytes(StandardCharsets.UTF_8));
+        record[4 + 4] ^= 1;
+        writeFully(conn.toServer, record);
+        readFully(conn.server, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTamperedTagRejected() throws IOException {
+        final Intercepted conn = new Intercepted();
+        final byte[] record = conn.sendFromClient("pay 10 coins".getBytes(StandardCharsets.UTF_8));
+        record[record.length - 1] ^= 1;
+        writeFully(conn.toServer, record);
+        readFully(conn.server, 1);
+    }
+
+    @Test
+    public void testReorderedRecordsRejected() throws IOException {
+        final Intercepted conn = new Intercepted();
+        final byte[] first = conn.sendFromClient("first".getBytes(StandardCharsets.UTF_8));
+        final byte[] second = conn.sendFromClient("second".getBytes(StandardCharsets.UTF_8));
+        writeFully(conn.toServer, second);
+        writeFully(conn.toServer, first);
+        try {
+            readFully(conn.server, 1);
+            fail("Record sent out of order was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongPassphraseRejected() throws IOException {
+        final SocketChannel[] raw = connect();
+        final SocketChannel a = wrap(WRAPPER, raw[0]), b = wrap(new AESSocketWrapper("other passphrase"), raw[1]);
+        awaitNonce(a);
+        writeFully(a, "hello".getBytes(StandardCharsets.UTF_8));
+        readFully(b, 1);
+    }
+
+    @Test
+    public void testKeysDifferPerConnection() throws IOException {
+        final byte[] message = "same message".getBytes(StandardCharsets.UTF_8);
+        final Intercepted first = new Intercepted(), second = new Intercepted();
+        assertFalse(Arrays.equals(first.clientNonce, second.clientNonce));
+        assertFalse(Arrays.equals(first.sendFromClient(message), second.sendFromClient(message)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReplayToAnotherConnectionRejected() throws IOException {
+        final Intercepted recorded = new Intercepted(), replayed = new Intercepted();
+        final byte[] record = recorded.sendFromClient("pay 10 coins".getBytes(StandardCharsets.UTF_8));
+        writeFully(replayed.toServer, record);
+        readFully(replayed.server, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReflectedNonceRejected() throws IOException {
+        final SocketChannel[] raw = connect();
+        final SocketChannel wrapped = wrap(WRAPPER, raw[1]);
+        writeFully(raw[0], readFully(raw[0], NONCE_LEN));
+        wrapped.read(ByteBuffer.allocate(1));
+    }
+
+    @Test
+    public void testScatteringReadsAndGatheringWrites() throws Exception {
+        final SocketChannel[] raw = connect();
+        final SocketChannel a = wrap(WRAPPER, raw[0]), b = wrap(WRAPPER, raw[1]);
+        awaitNonce(a);
+        awaitNonce(b);
+        final Random random = new Random(42);
+        final byte[] data = new byte[100 * 1024]; // Several records
+        random.nextBytes(data);
+
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    int pos = 0;
+                    while (pos < data.length) {
+                        final int first = Math.min(random.nextInt(20000), data.length - pos);
+                        final int second = Math.min(random.nextInt(100), data.length - pos - first);
+                        final ByteBuffer[] srcs = {ByteBuffer.wrap(data, pos, first), ByteBuffer.allocate(0), ByteBuffer.wrap(data, pos + first, second)};
+                        while (srcs[0].hasRemaining() || srcs[2].hasRemaining()) {
+                            a.write(srcs, 0, srcs.length);
+                        }
+                        pos += first + second;
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+
+        final ByteBuffer received = ByteBuffer.allocate(data.length);
+        final Random sizes = new Random(7);
+        while (received.hasRemaining()) {
+            final ByteBuffer[] dsts = new ByteBuffer[1 + sizes.nextInt(4)];
+            for (int i = 0; i < dsts.length; ++i) {
+                final int size = Math.min(sizes.nextBoolean() ? sizes.nextInt(20000) : sizes.nextInt(7), received.remaining());
+                dsts[i] = sizes.nextBoolean() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+            }
+            long total = 0;
+            for (ByteBuffer dst : dsts) {
+                total += dst.remaining();
+            }
+            if (total == 0) {
+                continue;
+            }
+            final long read = b.read(dsts, 0, dsts.length);
+            assertTrue(read > 0);
+            for (ByteBuffer dst : dsts) {
+                dst.flip();
+                received.put(dst);
+            }
+        }
+        writer.join();
+        assertArrayEquals(data, received.array());
+    }
+}